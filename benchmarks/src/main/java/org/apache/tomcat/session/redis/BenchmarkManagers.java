@@ -0,0 +1,131 @@
+package org.apache.tomcat.session.redis;
+
+import java.beans.PropertyChangeListener;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Loader;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardHost;
+
+/**
+ * Starts managers outside of a Tomcat server, on an {@link InMemoryClusterOperator}.
+ */
+final class BenchmarkManagers {
+
+	private static final AtomicInteger CONTEXTS = new AtomicInteger();
+
+	private BenchmarkManagers() {
+	}
+
+	/**
+	 * @param nodes name of the in-memory cluster, shared by the managers given the same
+	 * @param settings applied to the manager before it starts
+	 */
+	static RedisClusterSessionManager start(String nodes, Consumer<RedisClusterSessionManager> settings) throws LifecycleException {
+		return start(InMemoryClusterOperator.class.getName(), nodes, settings);
+	}
+
+	/**
+	 * @param implementation "jedis", "lettuce" or the class name of an operator
+	 */
+	static RedisClusterSessionManager start(String implementation, String nodes, Consumer<RedisClusterSessionManager> settings) throws LifecycleException {
+		StandardHost host = new StandardHost();
+		host.setName("localhost");
+
+		// all the contexts share their sessions, named apart for JMX
+		StandardContext context = new StandardContext();
+		context.setName("/benchmark-" + CONTEXTS.incrementAndGet());
+		context.setPath("/benchmark");
+		context.setParent(host);
+		context.setSessionTimeout(30);
+		context.setLoader(new ClassLoaderLoader());
+
+		RedisClusterSessionManager manager = new RedisClusterSessionManager();
+		manager.setContext(context);
+		manager.setNodes(nodes);
+		manager.setImplementation(implementation);
+		// each manager stands for a Tomcat node, with a client of its own
+		manager.setSharedClient(false);
+		settings.accept(manager);
+
+		manager.start();
+		return manager;
+	}
+
+	static void stop(RedisClusterSessionManager manager) throws LifecycleException {
+		manager.stop();
+		manager.destroy();
+	}
+
+	static InMemoryClusterOperator getOperator(RedisClusterSessionManager manager) {
+		RedisClusterSessionOperator operator = manager.getSessionOperator();
+		if (operator instanceof RedisClusterSessionMeteredOperator) {
+			operator = ((RedisClusterSessionMeteredOperator) operator).getOperator();
+		}
+		if (operator instanceof RedisClusterSessionSharedOperator) {
+			operator = ((RedisClusterSessionSharedOperator) operator).getOperator();
+		}
+		return (InMemoryClusterOperator) operator;
+	}
+
+	/**
+	 * Loads the classes of the sessions from the benchmark class path.
+	 */
+	private static final class ClassLoaderLoader implements Loader {
+
+		private Context context;
+
+		@Override
+		public void backgroundProcess() {
+		}
+
+		@Override
+		public ClassLoader getClassLoader() {
+			return BenchmarkManagers.class.getClassLoader();
+		}
+
+		@Override
+		public Context getContext() {
+			return context;
+		}
+
+		@Override
+		public void setContext(Context context) {
+			this.context = context;
+		}
+
+		@Override
+		public boolean getDelegate() {
+			return false;
+		}
+
+		@Override
+		public void setDelegate(boolean delegate) {
+		}
+
+		@Override
+		public boolean getReloadable() {
+			return false;
+		}
+
+		@Override
+		public void setReloadable(boolean reloadable) {
+		}
+
+		@Override
+		public void addPropertyChangeListener(PropertyChangeListener listener) {
+		}
+
+		@Override
+		public boolean modified() {
+			return false;
+		}
+
+		@Override
+		public void removePropertyChangeListener(PropertyChangeListener listener) {
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package org.apache.tomcat.session.redis;
+
+/**
+ * Prints the commands and round trips of a request to the cluster, for each
+ * combination of the settings which change them.
+ *
+ * java -cp target/benchmarks.jar org.apache.tomcat.session.redis.CommandCounts
+ */
+public class CommandCounts {
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("attributes  local  writeBehind  nearCacheSize  touchThreshold  commands  roundTrips");
+
+		int cluster = 0;
+		for (int attributes : new int[] { 1, 10 }) {
+			for (boolean local : new boolean[] { true, false }) {
+				for (boolean writeBehind : new boolean[] { false, true }) {
+					for (int nearCacheSize : new int[] { 0, 64 }) {
+						for (double touchThreshold : new double[] { 0, 0.1 }) {
+							RedisClusterSessionManager manager = BenchmarkManagers.start("counts-" + cluster++, settings -> {
+								settings.setWriteBehind(writeBehind);
+								settings.setNearCacheSize(nearCacheSize);
+								settings.setTouchThreshold(touchThreshold);
+							});
+							try {
+								InMemoryClusterOperator operator = BenchmarkManagers.getOperator(manager);
+								SimulatedRequest request = new SimulatedRequest(manager, attributes, local);
+
+								// the first request of a session differs (its isNew flag is cleared)
+								request.run();
+								operator.resetCounters();
+								request.run();
+
+								System.out.println(String.format("%10d  %5b  %11b  %13d  %14.1f  %8d  %10d",
+										attributes, local, writeBehind, nearCacheSize, touchThreshold,
+										operator.getCommands(), operator.getRoundTrips()));
+							} finally {
+								BenchmarkManagers.stop(manager);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+}
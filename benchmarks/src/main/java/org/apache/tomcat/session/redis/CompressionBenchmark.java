@@ -0,0 +1,107 @@
+package org.apache.tomcat.session.redis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tomcat.session.redis.impl.DeflateCodecImpl;
+import org.apache.tomcat.session.redis.impl.TypedSerializerImpl;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CPU against bytes of the compression of the serialized values, per
+ * threshold (0: not compressed) and Deflate level. The bytes written are
+ * reported as a secondary result (divide them by the operation count of the
+ * iteration).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+	@Param({"0", "128", "512", "4096"})
+	public int threshold;
+
+	@Param({"1", "6"})
+	public int level;
+
+	@Param({"bean", "map", "cart", "text"})
+	public String type;
+
+	private RedisClusterSessionSerializer instance;
+	private Object value;
+	private byte[] data;
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Bytes {
+
+		public long bytes;
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		RedisClusterSessionSerializer serializer = new TypedSerializerImpl();
+		serializer.setClassLoader(getClass().getClassLoader());
+		if (threshold > 0) {
+			DeflateCodecImpl codec = new DeflateCodecImpl();
+			codec.setLevel(level);
+			serializer = new RedisClusterSessionCompressedSerializer(serializer, codec, threshold);
+		}
+		instance = serializer;
+
+		value = value(type);
+		data = instance.serialize(value);
+	}
+
+	static Object value(String type) {
+		switch (type) {
+			case "cart": {
+				// about 6 KB of application objects
+				List<SerializerBenchmark.Profile> cart = new ArrayList<SerializerBenchmark.Profile>();
+				for (int i = 0; i < 50; i++) {
+					cart.add(new SerializerBenchmark.Profile("user" + i, "User number " + i, 20 + i, new Date(1600000000000L + i)));
+				}
+				return cart;
+			}
+			case "text": {
+				// about 8 KB of markup, as a cached page fragment
+				StringBuilder text = new StringBuilder();
+				for (int i = 0; text.length() < 8192; i++) {
+					text.append("<li class=\"item\"><a href=\"/product/").append(i).append("\">Product ").append(i).append("</a></li>\n");
+				}
+				return text.toString();
+			}
+			default:
+				return SerializerBenchmark.value(type);
+		}
+	}
+
+	@Benchmark
+	public byte[] serialize(Bytes counters) throws IOException {
+		byte[] result = instance.serialize(value);
+		counters.bytes += result.length;
+		return result;
+	}
+
+	@Benchmark
+	public Object deserialize() throws IOException, ClassNotFoundException {
+		return instance.deserialize(data);
+	}
+}
@@ -0,0 +1,978 @@
+package org.apache.tomcat.session.redis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import redis.clients.util.JedisClusterCRC16;
+
+/**
+ * Redis Cluster stand-in running in the JVM: a few nodes listening on the
+ * loopback interface and speaking RESP, enough for the Jedis and Lettuce
+ * cluster clients to discover the topology and run the session commands.
+ *
+ * The slots are spread evenly over the masters. Each master may have replicas,
+ * which serve reads once a connection has sent READONLY. A key sent to a node
+ * which does not own its slot gets a MOVED redirection, and a slot being
+ * migrated gets ASK redirections until the migration completes. The nodes share
+ * a single store, so replication is immediate and WAIT returns at once. The
+ * scripts of the session manager are run natively, once loaded on the node.
+ * The messages published on any node reach the subscribers of every node, like
+ * through the cluster bus.
+ *
+ * The latency set is spent once per batch of commands read together, like a
+ * network round trip.
+ */
+public class FakeRedisCluster implements Closeable {
+
+	private static final int SLOTS = 16384;
+
+	private static final Set<String> READ_COMMANDS = Set.of("HGETALL", "HGET", "HKEYS", "HLEN", "EXISTS", "TTL");
+
+	private final List<Node> masters = new ArrayList<Node>();
+	private final List<Node> nodes = new ArrayList<Node>();
+
+	private final Node[] owners = new Node[SLOTS];
+	// slot being migrated, to its importing node
+	private final Map<Integer, Node> migrations = new ConcurrentHashMap<Integer, Node>();
+
+	private final Map<String, Hash> store = new ConcurrentHashMap<String, Hash>();
+	// connections subscribed to each channel, on any node
+	private final Map<String, Set<OutputStream>> subscribers = new ConcurrentHashMap<String, Set<OutputStream>>();
+
+	private volatile long latencyNanos = 0;
+
+	private final LongAdder commands = new LongAdder();
+	private final LongAdder roundTrips = new LongAdder();
+	private final LongAdder redirections = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+
+	private volatile boolean closed = false;
+
+	public FakeRedisCluster(int masterCount, int replicasPerMaster) throws IOException {
+		for (int i = 0; i < masterCount; i++) {
+			Node master = new Node(null);
+			masters.add(master);
+			nodes.add(master);
+
+			for (int j = 0; j < replicasPerMaster; j++) {
+				nodes.add(new Node(master));
+			}
+		}
+
+		for (int slot = 0; slot < SLOTS; slot++) {
+			owners[slot] = masters.get(slot * masterCount / SLOTS);
+		}
+
+		for (Node node : nodes) {
+			node.start();
+		}
+	}
+
+	/**
+	 * @return the addresses of the masters, in the format of the nodes setting of the manager
+	 */
+	public String getSeeds() {
+		StringBuilder seeds = new StringBuilder();
+		for (Node master : masters) {
+			if (seeds.length() > 0) seeds.append(',');
+			seeds.append(master.address());
+		}
+		return seeds.toString();
+	}
+
+	public void setLatency(long time, TimeUnit unit) {
+		latencyNanos = unit.toNanos(time);
+	}
+
+	/**
+	 * Starts migrating a slot to another master: the current owner answers
+	 * with ASK redirections until {@link #completeMigration(int)}.
+	 */
+	public void migrate(int slot, int master) {
+		Node target = masters.get(master);
+		if (owners[slot] != target) {
+			migrations.put(slot, target);
+		}
+	}
+
+	public void completeMigration(int slot) {
+		Node target = migrations.remove(slot);
+		if (target != null) {
+			owners[slot] = target;
+		}
+	}
+
+	/**
+	 * Moves a slot at once: the previous owner answers with MOVED redirections.
+	 */
+	public void moveSlot(int slot, int master) {
+		owners[slot] = masters.get(master);
+	}
+
+	public static int slot(String key) {
+		return JedisClusterCRC16.getSlot(key);
+	}
+
+	public long getCommands() {
+		return commands.sum();
+	}
+
+	public long getRoundTrips() {
+		return roundTrips.sum();
+	}
+
+	public long getRedirections() {
+		return redirections.sum();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	public void resetCounters() {
+		commands.reset();
+		roundTrips.reset();
+		redirections.reset();
+		bytesIn.reset();
+		bytesOut.reset();
+	}
+
+	public int size() {
+		return store.size();
+	}
+
+	public void flushAll() {
+		store.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		for (Node node : nodes) {
+			node.close();
+		}
+	}
+
+	private Hash get(String key) {
+		Hash hash = store.get(key);
+		if (hash != null && hash.isExpired()) {
+			store.remove(key, hash);
+			return null;
+		}
+		return hash;
+	}
+
+	private Hash getOrCreate(String key) {
+		Hash hash = get(key);
+		return hash != null ? hash : store.computeIfAbsent(key, k -> new Hash());
+	}
+
+	private static final class Hash {
+
+		final Map<String, byte[]> fields = new ConcurrentHashMap<String, byte[]>();
+		volatile long expireAt = 0;
+
+		boolean isExpired() {
+			return expireAt > 0 && System.currentTimeMillis() >= expireAt;
+		}
+	}
+
+	/**
+	 * State of a client connection.
+	 */
+	private static final class Session {
+
+		boolean readonly = false;
+		boolean asking = false;
+		List<byte[][]> transaction = null;
+		boolean transactionFailed = false;
+		final Set<String> channels = new LinkedHashSet<String>();
+	}
+
+	private final class Node implements Runnable {
+
+		final Node master;
+		final String id;
+		final ServerSocket serverSocket;
+		final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+		// digests of the scripts loaded on this node
+		final Set<String> scripts = ConcurrentHashMap.newKeySet();
+
+		Node(Node master) throws IOException {
+			this.master = master;
+			this.serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < 40; i++) {
+				builder.append(Character.forDigit((int) (Math.random() * 16), 16));
+			}
+			this.id = builder.toString();
+		}
+
+		void start() {
+			Thread thread = new Thread(this, "FakeRedisCluster-" + serverSocket.getLocalPort());
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		String host() {
+			return serverSocket.getInetAddress().getHostAddress();
+		}
+
+		int port() {
+			return serverSocket.getLocalPort();
+		}
+
+		String address() {
+			return host() + ":" + port();
+		}
+
+		boolean isMaster() {
+			return master == null;
+		}
+
+		void close() throws IOException {
+			serverSocket.close();
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (!closed) {
+				try {
+					Socket socket = serverSocket.accept();
+					socket.setTcpNoDelay(true);
+					sockets.add(socket);
+
+					Thread thread = new Thread(() -> serve(socket), "FakeRedisCluster-" + port() + "-" + socket.getPort());
+					thread.setDaemon(true);
+					thread.start();
+				} catch (IOException exception) {
+					// closed
+				}
+			}
+		}
+
+		private void serve(Socket accepted) {
+			Session session = new Session();
+			OutputStream out = null;
+			try (Socket socket = accepted) {
+				InputStream in = new BufferedInputStream(new CountingInputStream(socket.getInputStream(), bytesIn));
+				out = new BufferedOutputStream(new CountingOutputStream(socket.getOutputStream(), bytesOut));
+
+				byte[][] command;
+				while ((command = readCommand(in)) != null) {
+					commands.increment();
+					// published messages are written from the threads of other connections
+					synchronized (out) {
+						execute(command, out, session);
+					}
+
+					if (in.available() == 0) {
+						// the batch of commands read together has been answered
+						roundTrips.increment();
+						long latency = latencyNanos;
+						if (latency > 0) {
+							LockSupport.parkNanos(latency);
+						}
+						synchronized (out) {
+							out.flush();
+						}
+					}
+				}
+			} catch (IOException exception) {
+				// disconnected
+			} finally {
+				sockets.remove(accepted);
+				for (String channel : session.channels) {
+					subscribers.get(channel).remove(out);
+				}
+			}
+		}
+
+		private void execute(byte[][] command, OutputStream out, Session session) throws IOException {
+			String name = string(command[0]).toUpperCase(Locale.ROOT);
+			boolean asking = session.asking;
+			session.asking = false;
+
+			switch (name) {
+				case "PING":
+					simple(out, "PONG");
+					return;
+				case "ECHO":
+					bulk(out, command[1]);
+					return;
+				case "READONLY":
+					session.readonly = true;
+					simple(out, "OK");
+					return;
+				case "READWRITE":
+					session.readonly = false;
+					simple(out, "OK");
+					return;
+				case "ASKING":
+					session.asking = true;
+					simple(out, "OK");
+					return;
+				case "CLIENT":
+					client(command, out);
+					return;
+				case "CLUSTER":
+					cluster(command, out);
+					return;
+				case "INFO":
+					bulk(out, "# Server\r\nredis_version:5.0.0\r\nredis_mode:cluster\r\n");
+					return;
+				case "SELECT":
+					simple(out, "OK");
+					return;
+				case "MULTI":
+					session.transaction = new ArrayList<byte[][]>();
+					session.transactionFailed = false;
+					simple(out, "OK");
+					return;
+				case "DISCARD":
+					session.transaction = null;
+					simple(out, "OK");
+					return;
+				case "EXEC":
+					exec(out, session);
+					return;
+				case "SCRIPT":
+					script(command, out);
+					return;
+				case "SUBSCRIBE":
+				case "UNSUBSCRIBE":
+					subscribe(name, command, out, session);
+					return;
+				case "PUBLISH":
+					publish(command, out);
+					return;
+				case "WAIT":
+					// the replicas share the store of their master: every write has reached them
+					integer(out, nodes.stream().filter(node -> node.master == this).count());
+					return;
+				default:
+			}
+
+			if (command.length < 2) {
+				error(out, "ERR wrong number of arguments for '" + name.toLowerCase(Locale.ROOT) + "' command");
+				return;
+			}
+
+			// the key of a script follows its digest and number of keys
+			boolean script = name.equals("EVALSHA") || name.equals("EVAL");
+			if (script && command.length < 4) {
+				error(out, "ERR wrong number of arguments for '" + name.toLowerCase(Locale.ROOT) + "' command");
+				return;
+			}
+
+			String redirection = route(name, string(command[script ? 3 : 1]), session, asking);
+			if (redirection != null) {
+				redirections.increment();
+				if (session.transaction != null) {
+					session.transactionFailed = true;
+				}
+				error(out, redirection);
+				return;
+			}
+
+			if (session.transaction != null) {
+				session.transaction.add(command);
+				simple(out, "QUEUED");
+				return;
+			}
+
+			if (script) {
+				eval(name, command, out);
+			} else {
+				data(name, command, out);
+			}
+		}
+
+		/**
+		 * Runs the scripts of the session manager, natively: the known scripts
+		 * are recognized by their digest.
+		 */
+		private void eval(String name, byte[][] command, OutputStream out) throws IOException {
+			String digest = name.equals("EVAL") ? RedisClusterSessionScripts.sha1(string(command[1])) : string(command[1]).toLowerCase(Locale.ROOT);
+			if (name.equals("EVALSHA") && !scripts.contains(digest)) {
+				error(out, "NOSCRIPT No matching script. Please use EVAL.");
+				return;
+			}
+			if (name.equals("EVAL")) {
+				// cached by the node, like a script loaded
+				scripts.add(digest);
+			}
+			if (digest.equals(RedisClusterSessionScripts.TOUCH_SHA1)) {
+				touch(command, out);
+				return;
+			}
+			if (!digest.equals(RedisClusterSessionScripts.COMPARE_AND_FLUSH_SHA1)) {
+				error(out, "ERR unsupported script");
+				return;
+			}
+
+			// KEYS[1], then the arguments of COMPARE_AND_FLUSH
+			String versionField = string(command[4]);
+			long expected = Long.parseLong(string(command[5]));
+			int expire = Integer.parseInt(string(command[6]));
+			int fields = Integer.parseInt(string(command[7]));
+
+			// only a write of the whole session creates it
+			boolean whole = false;
+			for (int n = 0; n < fields; n++) {
+				whole |= string(command[8 + 2 * n]).equals(RedisClusterSession.CREATED_FIELD);
+			}
+			if (!whole && get(string(command[3])) == null) {
+				integer(out, RedisClusterSessionScripts.MISSING);
+				return;
+			}
+			Hash hash = getOrCreate(string(command[3]));
+
+			long version;
+			synchronized (hash) {
+				byte[] current = hash.fields.get(versionField);
+				version = current == null ? 0 : Long.parseLong(string(current));
+				if (version != expected) {
+					integer(out, -1 - version);
+					return;
+				}
+
+				int i = 8;
+				for (int n = 0; n < fields; n++, i += 2) {
+					hash.fields.put(string(command[i]), command[i + 1]);
+				}
+				for (; i < command.length; i++) {
+					hash.fields.remove(string(command[i]));
+				}
+				version++;
+				hash.fields.put(versionField, bytes(Long.toString(version)));
+				if (expire > 0) {
+					hash.expireAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expire);
+				}
+			}
+			integer(out, version);
+		}
+
+		/**
+		 * KEYS[1], then the arguments of TOUCH.
+		 */
+		private void touch(byte[][] command, OutputStream out) throws IOException {
+			Hash hash = get(string(command[3]));
+			if (hash == null) {
+				integer(out, 0);
+				return;
+			}
+
+			int expire = Integer.parseInt(string(command[6]));
+			synchronized (hash) {
+				hash.fields.put(string(command[4]), command[5]);
+				if (expire > 0) {
+					hash.expireAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expire);
+				}
+			}
+			integer(out, 1);
+		}
+
+		private void subscribe(String name, byte[][] command, OutputStream out, Session session) throws IOException {
+			boolean subscribe = name.equals("SUBSCRIBE");
+
+			List<String> channels = new ArrayList<String>();
+			for (int i = 1; i < command.length; i++) {
+				channels.add(string(command[i]));
+			}
+			if (!subscribe && channels.isEmpty()) {
+				channels.addAll(session.channels);
+			}
+
+			for (String channel : channels) {
+				Set<OutputStream> channelSubscribers = subscribers.computeIfAbsent(channel, c -> ConcurrentHashMap.newKeySet());
+				if (subscribe) {
+					session.channels.add(channel);
+					channelSubscribers.add(out);
+				} else {
+					session.channels.remove(channel);
+					channelSubscribers.remove(out);
+				}
+				write(out, new Object[] { bytes(name.toLowerCase(Locale.ROOT)), bytes(channel), (long) session.channels.size() });
+			}
+		}
+
+		private void publish(byte[][] command, OutputStream out) throws IOException {
+			if (command.length != 3) {
+				error(out, "ERR wrong number of arguments for 'publish' command");
+				return;
+			}
+
+			long receivers = 0;
+			for (OutputStream subscriber : subscribers.getOrDefault(string(command[1]), Collections.emptySet())) {
+				try {
+					synchronized (subscriber) {
+						write(subscriber, new Object[] { bytes("message"), command[1], command[2] });
+						subscriber.flush();
+					}
+					receivers++;
+				} catch (IOException exception) {
+					// disconnected
+				}
+			}
+			integer(out, receivers);
+		}
+
+		private void script(byte[][] command, OutputStream out) throws IOException {
+			String subcommand = command.length < 2 ? "" : string(command[1]).toUpperCase(Locale.ROOT);
+			switch (subcommand) {
+				case "LOAD": {
+					String digest = RedisClusterSessionScripts.sha1(string(command[2]));
+					scripts.add(digest);
+					bulk(out, digest);
+					return;
+				}
+				case "EXISTS": {
+					arrayHeader(out, command.length - 2);
+					for (int i = 2; i < command.length; i++) {
+						integer(out, scripts.contains(string(command[i]).toLowerCase(Locale.ROOT)) ? 1 : 0);
+					}
+					return;
+				}
+				case "FLUSH":
+					scripts.clear();
+					simple(out, "OK");
+					return;
+				default:
+					error(out, "ERR unknown subcommand '" + subcommand.toLowerCase(Locale.ROOT) + "'");
+			}
+		}
+
+		/**
+		 * @return the redirection error, or null if this node serves the key
+		 */
+		private String route(String name, String key, Session session, boolean asking) {
+			int slot = slot(key);
+			Node owner = owners[slot];
+
+			if (isMaster()) {
+				if (owner == this) {
+					Node importing = migrations.get(slot);
+					return importing == null ? null : "ASK " + slot + " " + importing.address();
+				}
+				if (asking && migrations.get(slot) == this) return null;
+			} else if (session.readonly && READ_COMMANDS.contains(name) && master == owner) {
+				return null;
+			}
+			return "MOVED " + slot + " " + owner.address();
+		}
+
+		private void exec(OutputStream out, Session session) throws IOException {
+			List<byte[][]> transaction = session.transaction;
+			session.transaction = null;
+
+			if (transaction == null) {
+				error(out, "ERR EXEC without MULTI");
+			} else if (session.transactionFailed) {
+				error(out, "EXECABORT Transaction discarded because of previous errors.");
+			} else {
+				arrayHeader(out, transaction.size());
+				for (byte[][] command : transaction) {
+					data(string(command[0]).toUpperCase(Locale.ROOT), command, out);
+				}
+			}
+		}
+
+		private void data(String name, byte[][] command, OutputStream out) throws IOException {
+			String key = string(command[1]);
+
+			switch (name) {
+				case "HGETALL": {
+					Hash hash = get(key);
+					Map<String, byte[]> fields = hash == null ? Collections.emptyMap() : hash.fields;
+					List<byte[]> items = new ArrayList<byte[]>();
+					for (Map.Entry<String, byte[]> entry : fields.entrySet()) {
+						items.add(bytes(entry.getKey()));
+						items.add(entry.getValue());
+					}
+					array(out, items);
+					return;
+				}
+				case "HGET": {
+					Hash hash = get(key);
+					bulk(out, hash == null ? null : hash.fields.get(string(command[2])));
+					return;
+				}
+				case "HKEYS": {
+					Hash hash = get(key);
+					List<byte[]> items = new ArrayList<byte[]>();
+					if (hash != null) {
+						for (String field : hash.fields.keySet()) {
+							items.add(bytes(field));
+						}
+					}
+					array(out, items);
+					return;
+				}
+				case "HLEN": {
+					Hash hash = get(key);
+					integer(out, hash == null ? 0 : hash.fields.size());
+					return;
+				}
+				case "HSET":
+				case "HMSET": {
+					Hash hash = getOrCreate(key);
+					int added = 0;
+					for (int i = 2; i + 1 < command.length; i += 2) {
+						if (hash.fields.put(string(command[i]), command[i + 1]) == null) added++;
+					}
+					if (name.equals("HMSET")) {
+						simple(out, "OK");
+					} else {
+						integer(out, added);
+					}
+					return;
+				}
+				case "HDEL": {
+					Hash hash = get(key);
+					int removed = 0;
+					if (hash != null) {
+						for (int i = 2; i < command.length; i++) {
+							if (hash.fields.remove(string(command[i])) != null) removed++;
+						}
+						if (hash.fields.isEmpty()) store.remove(key, hash);
+					}
+					integer(out, removed);
+					return;
+				}
+				case "HINCRBY": {
+					Hash hash = getOrCreate(key);
+					long value;
+					synchronized (hash) {
+						byte[] current = hash.fields.get(string(command[2]));
+						value = (current == null ? 0 : Long.parseLong(string(current))) + Long.parseLong(string(command[3]));
+						hash.fields.put(string(command[2]), bytes(Long.toString(value)));
+					}
+					integer(out, value);
+					return;
+				}
+				case "DEL":
+				case "UNLINK": {
+					int removed = 0;
+					for (int i = 1; i < command.length; i++) {
+						if (store.remove(string(command[i])) != null) removed++;
+					}
+					integer(out, removed);
+					return;
+				}
+				case "EXISTS":
+					integer(out, get(key) == null ? 0 : 1);
+					return;
+				case "EXPIRE":
+				case "PEXPIRE": {
+					Hash hash = get(key);
+					if (hash != null) {
+						long time = Long.parseLong(string(command[2]));
+						hash.expireAt = System.currentTimeMillis() + (name.equals("EXPIRE") ? TimeUnit.SECONDS.toMillis(time) : time);
+					}
+					integer(out, hash == null ? 0 : 1);
+					return;
+				}
+				case "TTL": {
+					Hash hash = get(key);
+					integer(out, hash == null ? -2 : hash.expireAt == 0 ? -1
+							: TimeUnit.MILLISECONDS.toSeconds(hash.expireAt - System.currentTimeMillis()));
+					return;
+				}
+				default:
+					error(out, "ERR unknown command '" + name.toLowerCase(Locale.ROOT) + "'");
+			}
+		}
+
+		private void client(byte[][] command, OutputStream out) throws IOException {
+			String subcommand = command.length > 1 ? string(command[1]).toUpperCase(Locale.ROOT) : "";
+			switch (subcommand) {
+				case "LIST":
+					StringBuilder list = new StringBuilder();
+					for (Socket socket : sockets) {
+						list.append("id=").append(socket.getPort()).append(" addr=")
+							.append(socket.getInetAddress().getHostAddress()).append(':').append(socket.getPort()).append(" cmd=client\n");
+					}
+					bulk(out, list.toString());
+					return;
+				case "GETNAME":
+					bulk(out, (byte[]) null);
+					return;
+				default:
+					simple(out, "OK");
+			}
+		}
+
+		private void cluster(byte[][] command, OutputStream out) throws IOException {
+			String subcommand = command.length > 1 ? string(command[1]).toUpperCase(Locale.ROOT) : "";
+			switch (subcommand) {
+				case "NODES":
+					bulk(out, describeNodes(this));
+					return;
+				case "SLOTS":
+					describeSlots(out);
+					return;
+				case "MYID":
+					bulk(out, id);
+					return;
+				case "INFO":
+					bulk(out, "cluster_state:ok\r\ncluster_slots_assigned:16384\r\ncluster_known_nodes:" + nodes.size()
+							+ "\r\ncluster_size:" + masters.size() + "\r\n");
+					return;
+				case "KEYSLOT":
+					integer(out, slot(string(command[2])));
+					return;
+				default:
+					error(out, "ERR unknown subcommand '" + subcommand.toLowerCase(Locale.ROOT) + "'");
+			}
+		}
+	}
+
+	/**
+	 * @return the contiguous slot ranges owned by a master, as {start, end} pairs
+	 */
+	private List<int[]> ranges(Node master) {
+		List<int[]> ranges = new ArrayList<int[]>();
+		int start = -1;
+		for (int slot = 0; slot <= SLOTS; slot++) {
+			boolean owned = slot < SLOTS && owners[slot] == master;
+			if (owned && start < 0) {
+				start = slot;
+			} else if (!owned && start >= 0) {
+				ranges.add(new int[] { start, slot - 1 });
+				start = -1;
+			}
+		}
+		return ranges;
+	}
+
+	private String describeNodes(Node self) {
+		StringBuilder description = new StringBuilder();
+		for (Node node : nodes) {
+			description.append(node.id).append(' ').append(node.address()).append('@').append(node.port() + 10000).append(' ');
+			if (node == self) description.append("myself,");
+			description.append(node.isMaster() ? "master" : "slave").append(' ');
+			description.append(node.isMaster() ? "-" : node.master.id);
+			description.append(" 0 ").append(System.currentTimeMillis()).append(" 1 connected");
+			if (node.isMaster()) {
+				for (int[] range : ranges(node)) {
+					description.append(' ').append(range[0]);
+					if (range[1] != range[0]) description.append('-').append(range[1]);
+				}
+			}
+			description.append('\n');
+		}
+		return description.toString();
+	}
+
+	private void describeSlots(OutputStream out) throws IOException {
+		List<Object[]> entries = new ArrayList<Object[]>();
+		for (Node master : masters) {
+			for (int[] range : ranges(master)) {
+				List<Object> entry = new ArrayList<Object>();
+				entry.add((long) range[0]);
+				entry.add((long) range[1]);
+				entry.add(new Object[] { bytes(master.host()), (long) master.port(), bytes(master.id) });
+				for (Node node : nodes) {
+					if (node.master == master) {
+						entry.add(new Object[] { bytes(node.host()), (long) node.port(), bytes(node.id) });
+					}
+				}
+				entries.add(entry.toArray());
+			}
+		}
+		write(out, entries.toArray());
+	}
+
+	/* RESP */
+
+	private static byte[][] readCommand(InputStream in) throws IOException {
+		int type = in.read();
+		if (type < 0) return null;
+		if (type != '*') throw new IOException("Inline commands are not supported");
+
+		int count = (int) readNumber(in);
+		byte[][] command = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			if (in.read() != '$') throw new IOException("Bulk string expected");
+			int length = (int) readNumber(in);
+			byte[] argument = new byte[length];
+			int read = 0;
+			while (read < length) {
+				int n = in.read(argument, read, length - read);
+				if (n < 0) throw new EOFException();
+				read += n;
+			}
+			in.read();
+			in.read();
+			command[i] = argument;
+		}
+		return command;
+	}
+
+	private static long readNumber(InputStream in) throws IOException {
+		long value = 0;
+		boolean negative = false;
+		int c;
+		while ((c = in.read()) != '\r') {
+			if (c < 0) throw new EOFException();
+			if (c == '-') {
+				negative = true;
+			} else {
+				value = value * 10 + (c - '0');
+			}
+		}
+		in.read();
+		return negative ? -value : value;
+	}
+
+	private static void simple(OutputStream out, String value) throws IOException {
+		out.write('+');
+		out.write(bytes(value));
+		out.write(CRLF);
+	}
+
+	private static void error(OutputStream out, String message) throws IOException {
+		out.write('-');
+		out.write(bytes(message));
+		out.write(CRLF);
+	}
+
+	private static void integer(OutputStream out, long value) throws IOException {
+		out.write(':');
+		out.write(bytes(Long.toString(value)));
+		out.write(CRLF);
+	}
+
+	private static void bulk(OutputStream out, String value) throws IOException {
+		bulk(out, bytes(value));
+	}
+
+	private static void bulk(OutputStream out, byte[] value) throws IOException {
+		if (value == null) {
+			out.write(NULL_BULK);
+			return;
+		}
+		out.write('$');
+		out.write(bytes(Integer.toString(value.length)));
+		out.write(CRLF);
+		out.write(value);
+		out.write(CRLF);
+	}
+
+	private static void arrayHeader(OutputStream out, int size) throws IOException {
+		out.write('*');
+		out.write(bytes(Integer.toString(size)));
+		out.write(CRLF);
+	}
+
+	private static void array(OutputStream out, List<byte[]> items) throws IOException {
+		arrayHeader(out, items.size());
+		for (byte[] item : items) {
+			bulk(out, item);
+		}
+	}
+
+	private static void write(OutputStream out, Object value) throws IOException {
+		if (value instanceof Object[]) {
+			Object[] items = (Object[]) value;
+			arrayHeader(out, items.length);
+			for (Object item : items) {
+				write(out, item);
+			}
+		} else if (value instanceof Long) {
+			integer(out, (Long) value);
+		} else {
+			bulk(out, (byte[]) value);
+		}
+	}
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] NULL_BULK = { '$', '-', '1', '\r', '\n' };
+
+	// keys and fields are kept as strings of their raw bytes
+	private static String string(byte[] bytes) {
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	private static byte[] bytes(String string) {
+		return string.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static final class CountingInputStream extends FilterInputStream {
+
+		private final LongAdder counter;
+
+		CountingInputStream(InputStream in, LongAdder counter) {
+			super(in);
+			this.counter = counter;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) counter.increment();
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int n = super.read(buffer, offset, length);
+			if (n > 0) counter.add(n);
+			return n;
+		}
+	}
+
+	private static final class CountingOutputStream extends FilterOutputStream {
+
+		private final LongAdder counter;
+
+		CountingOutputStream(OutputStream out, LongAdder counter) {
+			super(out);
+			this.counter = counter;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			counter.increment();
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			out.write(buffer, offset, length);
+			counter.add(length);
+		}
+	}
+}
@@ -0,0 +1,298 @@
+package org.apache.tomcat.session.redis;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Cluster kept in memory, counting the commands and the round trips it is
+ * sent. Times to live are ignored. The operators built with the same nodes
+ * share their keys, like the nodes of a Tomcat cluster.
+ *
+ * Used by the benchmarks with implementation="org.apache.tomcat.session.redis.InMemoryClusterOperator".
+ */
+public class InMemoryClusterOperator implements RedisClusterSessionOperator {
+
+	private static final Map<String, Map<String, Map<String, byte[]>>> CLUSTERS = new ConcurrentHashMap<String, Map<String, Map<String, byte[]>>>();
+
+	// listeners by cluster, then by channel
+	private static final Map<String, Map<String, List<Consumer<String>>>> CHANNELS = new ConcurrentHashMap<String, Map<String, List<Consumer<String>>>>();
+
+	private Map<String, Map<String, byte[]>> keys = new ConcurrentHashMap<String, Map<String, byte[]>>();
+	private Map<String, List<Consumer<String>>> channels = new ConcurrentHashMap<String, List<Consumer<String>>>();
+	private final Map<String, Consumer<String>> subscriptions = new ConcurrentHashMap<String, Consumer<String>>();
+
+	private final LongAdder commands = new LongAdder();
+	private final LongAdder roundTrips = new LongAdder();
+
+	private final RedisClusterSessionAsyncOperator async = new Async();
+
+	@Override
+	public void buildClient(String nodes, int timeout) {
+		if (nodes != null) {
+			keys = CLUSTERS.computeIfAbsent(nodes, cluster -> new ConcurrentHashMap<String, Map<String, byte[]>>());
+			channels = CHANNELS.computeIfAbsent(nodes, cluster -> new ConcurrentHashMap<String, List<Consumer<String>>>());
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		for (Entry<String, Consumer<String>> subscription : subscriptions.entrySet()) {
+			channels.get(subscription.getKey()).remove(subscription.getValue());
+		}
+		subscriptions.clear();
+	}
+
+	public long getCommands() {
+		return commands.sum();
+	}
+
+	public long getRoundTrips() {
+		return roundTrips.sum();
+	}
+
+	public void resetCounters() {
+		commands.reset();
+		roundTrips.reset();
+	}
+
+	private void count(int commandCount) {
+		commands.add(commandCount);
+		roundTrips.increment();
+	}
+
+	private Map<String, byte[]> hash(String sessionKey) {
+		return keys.computeIfAbsent(sessionKey, key -> new ConcurrentHashMap<String, byte[]>());
+	}
+
+	@Override
+	public Map<String, byte[]> getMap(String sessionKey) {
+		count(1);
+		Map<String, byte[]> hash = keys.get(sessionKey);
+		return hash == null ? new HashMap<String, byte[]>() : new HashMap<String, byte[]>(hash);
+	}
+
+	@Override
+	public void del(String sessionKey) {
+		count(1);
+		keys.remove(sessionKey);
+	}
+
+	@Override
+	public void expire(String sessionKey, int expire) {
+		count(1);
+	}
+
+	@Override
+	public void hset(String sessionKey, String field, byte[] value) {
+		count(1);
+		hash(sessionKey).put(field, value);
+	}
+
+	@Override
+	public void hdel(String sessionKey, String field) {
+		count(1);
+		Map<String, byte[]> hash = keys.get(sessionKey);
+		if (hash != null) {
+			hash.remove(field);
+		}
+	}
+
+	@Override
+	public void hmset(String sessionKey, Map<String, byte[]> map) {
+		count(1);
+		hash(sessionKey).putAll(map);
+	}
+
+	@Override
+	public Set<String> hkeys(String sessionKey) {
+		count(1);
+		Map<String, byte[]> hash = keys.get(sessionKey);
+		return hash == null ? Collections.emptySet() : new HashSet<String>(hash.keySet());
+	}
+
+	@Override
+	public byte[] hget(String sessionKey, String field) {
+		count(1);
+		Map<String, byte[]> hash = keys.get(sessionKey);
+		return hash == null ? null : hash.get(field);
+	}
+
+	@Override
+	public Set<String> hkeysFromReplica(String sessionKey) {
+		return hkeys(sessionKey);
+	}
+
+	@Override
+	public byte[] hgetFromReplica(String sessionKey, String field) {
+		return hget(sessionKey, field);
+	}
+
+	@Override
+	public long flush(String sessionKey, Map<String, byte[]> fields, Set<String> removedFields, String versionField, int expire) {
+		count((fields.isEmpty() ? 0 : 1) + (removedFields.isEmpty() ? 0 : 1) + (versionField == null ? 0 : 1) + (expire > 0 ? 1 : 0));
+
+		Map<String, byte[]> hash = hash(sessionKey);
+		hash.putAll(fields);
+		hash.keySet().removeAll(removedFields);
+
+		if (versionField == null) return 0;
+
+		synchronized (hash) {
+			byte[] current = hash.get(versionField);
+			long version = (current == null ? 0 : Long.parseLong(new String(current))) + 1;
+			hash.put(versionField, Long.toString(version).getBytes());
+			return version;
+		}
+	}
+
+	@Override
+	public long compareAndFlush(String sessionKey, Map<String, byte[]> fields, Set<String> removedFields, String versionField, long expectedVersion, int expire) {
+		count(1);
+
+		// only a write of the whole session creates it
+		if (!fields.containsKey(RedisClusterSession.CREATED_FIELD) && !keys.containsKey(sessionKey)) {
+			return RedisClusterSessionScripts.MISSING;
+		}
+
+		Map<String, byte[]> hash = hash(sessionKey);
+		synchronized (hash) {
+			byte[] current = hash.get(versionField);
+			long version = current == null ? 0 : Long.parseLong(new String(current));
+			if (version != expectedVersion) return -1 - version;
+
+			hash.putAll(fields);
+			hash.keySet().removeAll(removedFields);
+			hash.put(versionField, Long.toString(version + 1).getBytes());
+			return version + 1;
+		}
+	}
+
+	@Override
+	public Map<String, Map<String, byte[]>> getMaps(Collection<String> sessionKeys) {
+		count(sessionKeys.size());
+
+		Map<String, Map<String, byte[]>> maps = new HashMap<String, Map<String, byte[]>>();
+		for (String sessionKey : sessionKeys) {
+			Map<String, byte[]> hash = keys.get(sessionKey);
+			if (hash != null) {
+				maps.put(sessionKey, new HashMap<String, byte[]>(hash));
+			}
+		}
+		return maps;
+	}
+
+	@Override
+	public void delAll(Collection<String> keys) {
+		count(keys.size());
+		this.keys.keySet().removeAll(keys);
+	}
+
+	@Override
+	public void touch(Map<String, byte[]> values, String field, int expire) {
+		count(values.size());
+
+		for (Entry<String, byte[]> entry : values.entrySet()) {
+			// a session deleted in between is not recreated
+			keys.computeIfPresent(entry.getKey(), (key, hash) -> {
+				hash.put(field, entry.getValue());
+				return hash;
+			});
+		}
+	}
+
+	@Override
+	public void publish(String channel, String message) {
+		count(1);
+
+		List<Consumer<String>> listeners = channels.get(channel);
+		if (listeners != null) {
+			for (Consumer<String> listener : listeners) {
+				listener.accept(message);
+			}
+		}
+	}
+
+	@Override
+	public void subscribe(String channel, Consumer<String> listener) {
+		channels.computeIfAbsent(channel, c -> new CopyOnWriteArrayList<Consumer<String>>()).add(listener);
+		subscriptions.put(channel, listener);
+	}
+
+	@Override
+	public RedisClusterSessionAsyncOperator async() {
+		return async;
+	}
+
+	@Override
+	public String getNodeAddress(String sessionKey) {
+		return "memory";
+	}
+
+	/**
+	 * Runs the commands on the calling thread, completing right away.
+	 */
+	private class Async implements RedisClusterSessionAsyncOperator {
+
+		private <T> CompletionStage<T> run(Supplier<T> command) {
+			return CompletableFuture.completedFuture(command.get());
+		}
+
+		@Override
+		public CompletionStage<Map<String, byte[]>> getMap(String sessionKey) {
+			return run(() -> InMemoryClusterOperator.this.getMap(sessionKey));
+		}
+
+		@Override
+		public CompletionStage<Void> del(String sessionKey) {
+			return run(() -> { InMemoryClusterOperator.this.del(sessionKey); return null; });
+		}
+
+		@Override
+		public CompletionStage<Void> expire(String sessionKey, int expire) {
+			return run(() -> { InMemoryClusterOperator.this.expire(sessionKey, expire); return null; });
+		}
+
+		@Override
+		public CompletionStage<Void> hset(String sessionKey, String field, byte[] value) {
+			return run(() -> { InMemoryClusterOperator.this.hset(sessionKey, field, value); return null; });
+		}
+
+		@Override
+		public CompletionStage<Void> hdel(String sessionKey, String field) {
+			return run(() -> { InMemoryClusterOperator.this.hdel(sessionKey, field); return null; });
+		}
+
+		@Override
+		public CompletionStage<Set<String>> hkeys(String sessionKey) {
+			return run(() -> InMemoryClusterOperator.this.hkeys(sessionKey));
+		}
+
+		@Override
+		public CompletionStage<byte[]> hget(String sessionKey, String field) {
+			return run(() -> InMemoryClusterOperator.this.hget(sessionKey, field));
+		}
+
+		@Override
+		public CompletionStage<Long> flush(String sessionKey, Map<String, byte[]> fields, Set<String> removedFields, String versionField, int expire) {
+			return run(() -> InMemoryClusterOperator.this.flush(sessionKey, fields, removedFields, versionField, expire));
+		}
+
+		@Override
+		public CompletionStage<Void> publish(String channel, String message) {
+			return run(() -> { InMemoryClusterOperator.this.publish(channel, message); return null; });
+		}
+	}
+}
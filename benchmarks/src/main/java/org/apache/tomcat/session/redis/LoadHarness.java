@@ -0,0 +1,227 @@
+package org.apache.tomcat.session.redis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Drives several Tomcat contexts sharing their sessions through a
+ * {@link FakeRedisCluster}, with the real Jedis and Lettuce clients, and
+ * reports for each configuration the request latency percentiles, the commands
+ * per request and the bytes on the wire per request.
+ *
+ * Settings (system properties): managers (3), sessions (500), attributes (5),
+ * threads (8), requests (20000), latency in microseconds per round trip (200),
+ * sticky (false), resharding (false: true migrates a slot of the sessions
+ * every 100 ms, through ASK then MOVED redirections), implementations
+ * (jedis,lettuce), configurations (all, or a comma separated list of the names
+ * below).
+ *
+ * java -cp target/benchmarks.jar org.apache.tomcat.session.redis.LoadHarness
+ */
+public class LoadHarness {
+
+	private static final Map<String, Consumer<RedisClusterSessionManager>> CONFIGURATIONS = new LinkedHashMap<String, Consumer<RedisClusterSessionManager>>();
+
+	static {
+		CONFIGURATIONS.put("default", manager -> {});
+		CONFIGURATIONS.put("writeBehind", manager -> manager.setWriteBehind(true));
+		CONFIGURATIONS.put("nearCache", manager -> {
+			manager.setWriteBehind(true);
+			manager.setNearCacheSize(64);
+		});
+		CONFIGURATIONS.put("touch", manager -> {
+			manager.setWriteBehind(true);
+			manager.setNearCacheSize(64);
+			manager.setTouchThreshold(0.1);
+			manager.setTouchBatchInterval(50);
+		});
+		CONFIGURATIONS.put("async", manager -> {
+			manager.setNearCacheSize(64);
+			manager.setTouchThreshold(0.1);
+			manager.setAsyncWrites(true);
+		});
+		CONFIGURATIONS.put("metrics", manager -> {
+			manager.setWriteBehind(true);
+			manager.setNearCacheSize(64);
+			manager.setMetricsEnabled(true);
+		});
+		CONFIGURATIONS.put("striped", manager -> {
+			manager.setWriteBehind(true);
+			manager.setNearCacheSize(64);
+			manager.setConnections(4);
+			manager.setConnectionStriping("slot");
+			manager.setPoolMaxTotal(16);
+			manager.setPoolMinIdle(8);
+		});
+		CONFIGURATIONS.put("replicas", manager -> {
+			manager.setWriteBehind(true);
+			manager.setReadFromReplicas(true);
+			manager.setReplicaReadDelay(0);
+			manager.setWaitReplicas(1);
+		});
+		// Lettuce only, same as default with Jedis
+		CONFIGURATIONS.put("pipelined", manager -> {
+			manager.setPipelineInterval(200);
+			manager.setPipelineMaxCommands(32);
+		});
+	}
+
+	public static void main(String[] args) throws Exception {
+		int managerCount = Integer.getInteger("managers", 3);
+		int sessionCount = Integer.getInteger("sessions", 500);
+		int attributes = Integer.getInteger("attributes", 5);
+		int threads = Integer.getInteger("threads", 8);
+		int requests = Integer.getInteger("requests", 20000);
+		long latency = Long.getLong("latency", 200);
+		boolean sticky = Boolean.getBoolean("sticky");
+		boolean resharding = Boolean.getBoolean("resharding");
+		List<String> implementations = Arrays.asList(System.getProperty("implementations", "jedis,lettuce").split(","));
+		String selected = System.getProperty("configurations", "all");
+
+		try (FakeRedisCluster cluster = new FakeRedisCluster(3, 1)) {
+			cluster.setLatency(latency, TimeUnit.MICROSECONDS);
+
+			System.out.println(String.format("%d contexts, %d sessions of %d attributes, %d threads, %d requests, %d us per round trip, %s%s",
+					managerCount, sessionCount, attributes, threads, requests, latency, sticky ? "sticky" : "not sticky",
+					resharding ? ", resharding" : ""));
+			System.out.println("implementation  configuration     p50 (us)   p99 (us)   requests/s  commands/request  bytes/request  redirections");
+
+			for (String implementation : implementations) {
+				for (Map.Entry<String, Consumer<RedisClusterSessionManager>> configuration : CONFIGURATIONS.entrySet()) {
+					if (!selected.equals("all") && !Arrays.asList(selected.split(",")).contains(configuration.getKey())) continue;
+
+					cluster.flushAll();
+
+					List<RedisClusterSessionManager> managers = new ArrayList<RedisClusterSessionManager>();
+					try {
+						for (int i = 0; i < managerCount; i++) {
+							managers.add(BenchmarkManagers.start(implementation, cluster.getSeeds(), configuration.getValue()));
+						}
+
+						SimulatedRequest[] sessions = new SimulatedRequest[sessionCount];
+						for (int i = 0; i < sessionCount; i++) {
+							sessions[i] = new SimulatedRequest(managers.get(i % managerCount), attributes, true);
+						}
+
+						// warm up, then measure
+						run(managers, sessions, threads, requests / 4, sticky);
+						cluster.resetCounters();
+
+						Thread resharder = resharding ? reshard(cluster, sessions) : null;
+
+						long start = System.nanoTime();
+						long[] latencies = run(managers, sessions, threads, requests, sticky);
+						long elapsed = System.nanoTime() - start;
+
+						if (resharder != null) {
+							resharder.interrupt();
+							resharder.join();
+						}
+
+						Arrays.sort(latencies);
+						System.out.println(String.format("%-14s  %-14s  %10d %10d %12.0f %17.1f %14.0f %13d",
+								implementation, configuration.getKey(),
+								TimeUnit.NANOSECONDS.toMicros(percentile(latencies, 0.50)),
+								TimeUnit.NANOSECONDS.toMicros(percentile(latencies, 0.99)),
+								latencies.length / (elapsed / 1e9),
+								(double) cluster.getCommands() / latencies.length,
+								(double) (cluster.getBytesIn() + cluster.getBytesOut()) / latencies.length,
+								cluster.getRedirections()));
+					} finally {
+						for (RedisClusterSessionManager manager : managers) {
+							BenchmarkManagers.stop(manager);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Migrates the slot of a random session to the next master every 100 ms,
+	 * answering with ASK redirections for 20 ms before the slot is moved.
+	 */
+	private static Thread reshard(FakeRedisCluster cluster, SimulatedRequest[] sessions) {
+		Thread thread = new Thread(() -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int master = 0;
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					int slot = FakeRedisCluster.slot(sessions[random.nextInt(sessions.length)].getSessionKey());
+					master = (master + 1) % 3;
+
+					cluster.migrate(slot, master);
+					Thread.sleep(20);
+					cluster.completeMigration(slot);
+					Thread.sleep(80);
+				}
+			} catch (InterruptedException exception) {
+				// done
+			}
+		}, "LoadHarness-resharding");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * @return the latency of each request, in nanoseconds
+	 */
+	private static long[] run(List<RedisClusterSessionManager> managers, SimulatedRequest[] sessions,
+			int threads, int requests, boolean sticky) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+			for (int t = 0; t < threads; t++) {
+				int count = requests / threads;
+				results.add(executor.submit(() -> {
+					long[] latencies = new long[count];
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+
+					for (int i = 0; i < count; i++) {
+						int index = random.nextInt(sessions.length);
+						// sticky: each session always lands on the context which created it
+						RedisClusterSessionManager manager = managers.get(sticky ? index % managers.size() : random.nextInt(managers.size()));
+
+						long start = System.nanoTime();
+						sessions[index].run(manager);
+						latencies[i] = System.nanoTime() - start;
+					}
+					return latencies;
+				}));
+			}
+
+			List<long[]> all = new ArrayList<long[]>();
+			int total = 0;
+			for (Future<long[]> result : results) {
+				long[] latencies = result.get();
+				all.add(latencies);
+				total += latencies.length;
+			}
+
+			long[] merged = new long[total];
+			int offset = 0;
+			for (long[] latencies : all) {
+				System.arraycopy(latencies, 0, merged, offset, latencies.length);
+				offset += latencies.length;
+			}
+			return merged;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static long percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) return 0;
+		return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)];
+	}
+}
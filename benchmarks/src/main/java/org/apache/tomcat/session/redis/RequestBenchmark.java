@@ -0,0 +1,92 @@
+package org.apache.tomcat.session.redis;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.catalina.LifecycleException;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full request against the in-memory cluster, which measures the cost of the
+ * session handling itself. The commands and round trips it sends are reported
+ * as secondary results (divide them by the operation count of the iteration).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+
+	private static final AtomicInteger CLUSTERS = new AtomicInteger();
+
+	@Param({"1", "10"})
+	public int attributes;
+
+	@Param({"true", "false"})
+	public boolean local;
+
+	@Param({"false", "true"})
+	public boolean writeBehind;
+
+	@Param({"0", "64"})
+	public int nearCacheSize;
+
+	@Param({"0", "0.1"})
+	public double touchThreshold;
+
+	private RedisClusterSessionManager manager;
+	private InMemoryClusterOperator operator;
+	private SimulatedRequest request;
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Commands {
+
+		public long commands;
+		public long roundTrips;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws LifecycleException {
+		manager = BenchmarkManagers.start("benchmark-" + CLUSTERS.incrementAndGet(), manager -> {
+			manager.setWriteBehind(writeBehind);
+			manager.setNearCacheSize(nearCacheSize);
+			manager.setTouchThreshold(touchThreshold);
+		});
+		operator = BenchmarkManagers.getOperator(manager);
+		request = new SimulatedRequest(manager, attributes, local);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws LifecycleException {
+		BenchmarkManagers.stop(manager);
+	}
+
+	@Benchmark
+	public Object request(Commands counters) throws IOException {
+		long commands = operator.getCommands();
+		long roundTrips = operator.getRoundTrips();
+
+		Object result = request.run();
+
+		counters.commands += operator.getCommands() - commands;
+		counters.roundTrips += operator.getRoundTrips() - roundTrips;
+		return result;
+	}
+}
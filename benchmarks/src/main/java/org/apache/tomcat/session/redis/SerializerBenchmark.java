@@ -0,0 +1,140 @@
+package org.apache.tomcat.session.redis;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tomcat.session.redis.impl.JavaSerializerImpl;
+import org.apache.tomcat.session.redis.impl.TypedSerializerImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the serializers per attribute type. Run with -prof gc for the
+ * allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+	@Param({"typed", "java", "base64"})
+	public String serializer;
+
+	@Param({"string", "long", "date", "list", "map", "bean"})
+	public String type;
+
+	private RedisClusterSessionSerializer instance;
+	private Object value;
+	private byte[] data;
+
+	@Setup
+	public void setup() throws IOException {
+		switch (serializer) {
+			case "typed":
+				instance = new TypedSerializerImpl();
+				break;
+			case "java":
+				instance = new JavaSerializerImpl();
+				break;
+			default:
+				JavaSerializerImpl base64 = new JavaSerializerImpl();
+				base64.setBase64(true);
+				instance = base64;
+		}
+		instance.setClassLoader(getClass().getClassLoader());
+
+		value = value(type);
+		data = instance.serialize(value);
+	}
+
+	static Object value(String type) {
+		switch (type) {
+			case "string":
+				return "fr_FR;theme=dark;last-page=/account/orders";
+			case "long":
+				return 1234567890123L;
+			case "date":
+				return new Date(1600000000000L);
+			case "list": {
+				List<String> list = new ArrayList<String>();
+				for (int i = 0; i < 10; i++) {
+					list.add("product-" + i);
+				}
+				return list;
+			}
+			case "map": {
+				Map<String, Integer> map = new HashMap<String, Integer>();
+				for (int i = 0; i < 10; i++) {
+					map.put("product-" + i, i);
+				}
+				return map;
+			}
+			default:
+				return new Profile("jdoe", "John Doe", 42, new Date(1600000000000L));
+		}
+	}
+
+	@Benchmark
+	public byte[] serialize() throws IOException {
+		return instance.serialize(value);
+	}
+
+	@Benchmark
+	public Object deserialize() throws IOException, ClassNotFoundException {
+		return instance.deserialize(data);
+	}
+
+	/**
+	 * Application class, only handled by Java serialization.
+	 */
+	public static class Profile implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String login;
+		private final String name;
+		private final int age;
+		private final Date lastLogin;
+
+		public Profile(String login, String name, int age, Date lastLogin) {
+			this.login = login;
+			this.name = name;
+			this.age = age;
+			this.lastLogin = lastLogin;
+		}
+
+		public String getLogin() {
+			return login;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getAge() {
+			return age;
+		}
+
+		public Date getLastLogin() {
+			return lastLogin;
+		}
+	}
+}
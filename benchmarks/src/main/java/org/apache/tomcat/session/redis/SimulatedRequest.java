@@ -0,0 +1,111 @@
+package org.apache.tomcat.session.redis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.Session;
+
+/**
+ * One request on a session, calling the manager like Tomcat and the valve do:
+ * findSession, access, a read then a write of N attributes, endAccess. Half
+ * of the writes change the value, the other half set it again unchanged.
+ */
+final class SimulatedRequest {
+
+	private final RedisClusterSessionManager manager;
+	private final String sessionId;
+	private final String[] names;
+	private final boolean local;
+
+	private final AtomicLong counter = new AtomicLong();
+
+	/**
+	 * @param local true if the session stays on the node between requests, false
+	 * if each request lands on a node which has to load it from the cluster
+	 */
+	SimulatedRequest(RedisClusterSessionManager manager, int attributes, boolean local) {
+		this.manager = manager;
+		this.local = local;
+
+		Session session = manager.createSession(null);
+		this.sessionId = session.getId();
+
+		this.names = new String[attributes];
+		for (int i = 0; i < attributes; i++) {
+			names[i] = "attribute-" + i;
+			session.getSession().setAttribute(names[i], value(i, 0));
+		}
+
+		if (!local) {
+			manager.unregister((RedisClusterSession) session);
+		}
+	}
+
+	String getSessionKey() {
+		return manager.buildSessionKey(sessionId);
+	}
+
+	/**
+	 * The attributes mix Strings, Longs and small collections, like an
+	 * application holding user preferences would.
+	 */
+	static Object value(int index, long version) {
+		switch (index % 3) {
+			case 0:
+				return "value of attribute " + index + " #" + version;
+			case 1:
+				return Long.valueOf(version * 31 + index);
+			default:
+				Map<String, Object> map = new HashMap<String, Object>();
+				map.put("version", version);
+				List<String> items = new ArrayList<String>();
+				for (int i = 0; i < 4; i++) {
+					items.add("item-" + i);
+				}
+				map.put("items", items);
+				return map;
+		}
+	}
+
+	Object run() throws IOException {
+		RedisClusterSession session = run(manager);
+
+		if (!local) {
+			manager.unregister(session);
+		}
+		return session;
+	}
+
+	/**
+	 * Runs the request on the given node, where the session stays afterwards.
+	 */
+	RedisClusterSession run(RedisClusterSessionManager node) throws IOException {
+		boolean scope = node.beginRequest();
+		RedisClusterSession session;
+		try {
+			session = (RedisClusterSession) node.findSession(sessionId);
+			if (session == null) {
+				throw new IllegalStateException("Session " + sessionId + " not found");
+			}
+			session.access();
+
+			long version = counter.incrementAndGet();
+			for (int i = 0; i < names.length; i++) {
+				Object value = session.getAttribute(names[i]);
+				session.setAttribute(names[i], i % 2 == 0 ? value(i, version) : value);
+			}
+		} finally {
+			if (scope) {
+				node.endRequest();
+			}
+		}
+
+		// called by Request.recycle(), after the valves
+		session.endAccess();
+		return session;
+	}
+}
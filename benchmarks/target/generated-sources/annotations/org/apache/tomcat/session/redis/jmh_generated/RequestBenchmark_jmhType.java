@@ -0,0 +1,4 @@
+package org.apache.tomcat.session.redis.jmh_generated;
+public class RequestBenchmark_jmhType extends RequestBenchmark_jmhType_B3 {
+}
+
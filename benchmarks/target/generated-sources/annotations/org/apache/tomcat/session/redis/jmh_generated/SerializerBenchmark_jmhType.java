@@ -0,0 +1,4 @@
+package org.apache.tomcat.session.redis.jmh_generated;
+public class SerializerBenchmark_jmhType extends SerializerBenchmark_jmhType_B3 {
+}
+
@@ -1,18 +1,36 @@
 package org.apache.tomcat.session.redis;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionEvent;
+
+import org.apache.catalina.Session;
 import org.apache.catalina.realm.GenericPrincipal;
 import org.apache.catalina.session.StandardSession;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.ExceptionUtils;
 
 /**
  * TODO: notes are not backupped
@@ -25,8 +43,77 @@ public class RedisClusterSession extends StandardSession {
 	private static final long serialVersionUID = -2518607181636076487L;
 	private static final Log log = LogFactory.getLog(RedisClusterSession.class);
 
+	// fields of the hash which are not attributes
+	protected static final String INTERNAL_FIELD_PREFIX = "session:";
+
+	// incremented by every write of attributes, when versioning is enabled
+	protected static final String VERSION_FIELD = "session:version";
+
+	// written only with the whole session: a hash without it has been recreated
+	// by a partial write racing the deletion of the session by another node
+	protected static final String CREATED_FIELD = "session:created";
+	private static final byte[] CREATED = { 1 };
+
+	// attempts to apply changes over the versions written concurrently by other nodes
+	private static final int MAX_CONFLICT_RETRIES = 3;
+
+	// changes waiting for the end of the request, in write-behind mode
+	private transient RedisClusterSessionBatch batch;
+	private transient volatile boolean endAccessFlushed = false;
+
+	// last time the access time and the time to live have been refreshed in the cluster
+	private transient volatile long touchedAt = 0;
+
+	// completion of the last write sent without waiting for its reply
+	private transient volatile CompletableFuture<Void> lastWrite;
+
+	// the session has been loaded from the one-field-per-value metadata of a previous release
+	private transient boolean legacyMetadata = false;
+
+	private transient RedisClusterSessionCache nearCache;
+
+	private transient RedisClusterSessionAttributes localAttributes;
+
+	// fingerprints of the attribute values as last written or read by this node
+	private transient Map<String, Long> fingerprints = new ConcurrentHashMap<String, Long>();
+
+	// large attributes stored out of the session hash, by name
+	private transient Map<String, RedisClusterSessionOffload> offloaded = new ConcurrentHashMap<String, RedisClusterSessionOffload>();
+
+	// mutable values handed out during the request, in persist-mutations mode
+	private transient Map<String, Object> readValues;
+
+	// serialized size of the attributes held on this node, when the manager bounds its residency in bytes
+	private transient Map<String, Integer> sizes;
+
+	// set by each access, cleared by the eviction sweeps of the manager
+	private transient volatile boolean referenced = true;
+
+	// version of the hash as last read or written by this node (-1 if unknown), and whether another node has written since
+	private transient volatile long version = -1;
+	private transient volatile boolean stale = false;
+
+	// last change of the attributes written by this node
+	private transient volatile long changedAt = 0;
+
+	private static final Set<String> LEGACY_METADATA_FIELDS = new HashSet<String>(Arrays.asList(
+			"session:creationTime", "session:lastAccessedTime", "session:thisAccessedTime",
+			"session:maxInactiveInterval", "session:isValid", "session:isNew"));
+
 	public RedisClusterSession(RedisClusterSessionManager manager) {
 		super(manager);
+
+		localAttributes = new RedisClusterSessionAttributes(this);
+		attributes = localAttributes;
+
+		if (manager.getMaxResidentBytes() > 0) {
+			sizes = new ConcurrentHashMap<String, Integer>();
+		}
+
+		// in sticky mode, the local attributes are the cache
+		if (manager.getNearCacheSize() > 0 && !manager.isSticky()) {
+			nearCache = new RedisClusterSessionCache(manager.getNearCacheSize());
+		}
 	}
 
 	private RedisClusterSessionSerializer getSerializer() {
@@ -50,18 +137,7 @@ public class RedisClusterSession extends StandardSession {
 
 		if (this.id != null) {
 			try {
-				Map<String, String> newMap = new HashMap<String, String>(3);
-				newMap.put("session:creationTime", getSerializer().serialize(creationTime));
-				newMap.put("session:lastAccessedTime", getSerializer().serialize(lastAccessedTime));
-				newMap.put("session:thisAccessedTime", getSerializer().serialize(thisAccessedTime));
-
-				getManager().getSessionOperator()
-					.hmset(getSessionKey(), newMap);
-
-				if (getExpire() > 0) {
-					getManager().getSessionOperator()
-						.expire(getSessionKey(), getExpire());
-				}
+				storeMetadata(true);
 			} catch (Exception exception) {
 				log.error("Cannot set Creation Time", exception);
 			}
@@ -71,15 +147,20 @@ public class RedisClusterSession extends StandardSession {
 	@Override
 	public void access() {
 		super.access();
+		referenced = true;
 
 		if (this.id != null) {
 			try {
-				getManager().getSessionOperator()
-					.hset(getSessionKey(), "session:thisAccessedTime", getSerializer().serialize(thisAccessedTime));
+				if (isVersioned() && !getManager().isSticky()) {
+					// the one check per request telling whether another node changed the session
+					version = readVersion();
+					if (nearCache != null && !nearCache.validate(version)) {
+						fingerprints.clear();
+					}
+				}
 
-				if (getExpire() > 0) {
-					getManager().getSessionOperator()
-						.expire(getSessionKey(), getExpire());
+				if (isNew || isTouchDue()) {
+					touch(true);
 				}
 			} catch (Exception exception) {
 				log.error("Cannot update access", exception);
@@ -94,8 +175,7 @@ public class RedisClusterSession extends StandardSession {
 
 		if (this.id != null) {
 			try {
-				getManager().getSessionOperator()
-					.hset(getSessionKey(), "session:maxInactiveInterval", getSerializer().serialize(maxInactiveInterval));
+				storeMetadata(false);
 			} catch (Exception exception) {
 				log.error("Cannot set Max Inactive Interval", exception);
 			}
@@ -107,10 +187,11 @@ public class RedisClusterSession extends StandardSession {
 		if(this.isValid == isValid) return;
 		super.setValid(isValid);
 
-		if (this.id != null) {
+		// an invalidated session is deleted from the cluster, by then already:
+		// writing its flag would only recreate the hash
+		if (this.id != null && isValid) {
 			try {
-				getManager().getSessionOperator()
-					.hset(getSessionKey(), "session:isValid", getSerializer().serialize(isValid));
+				storeMetadata(false);
 			} catch (Exception exception) {
 				log.error("Cannot set is valid", exception);
 			}
@@ -124,8 +205,7 @@ public class RedisClusterSession extends StandardSession {
 
 		if (this.id != null) {
 			try {
-				getManager().getSessionOperator()
-					.hset(getSessionKey(), "session:isNew", getSerializer().serialize(isNew));
+				storeMetadata(false);
 			} catch (Exception exception) {
 				log.error("Cannot set is new", exception);
 			}
@@ -134,21 +214,18 @@ public class RedisClusterSession extends StandardSession {
 
 	@Override
 	public void endAccess() {
+		boolean wasNew = isNew;
 		super.endAccess();
 
-		if (this.id != null) {
+		if (endAccessFlushed) {
+			// already written by flush() at the end of the request
+			endAccessFlushed = false;
+			return;
+		}
+
+		if (this.id != null && (wasNew || isTouchDue())) {
 			try {
-				Map<String, String> newMap = new HashMap<String, String>(3);
-				newMap.put("session:lastAccessedTime", getSerializer().serialize(lastAccessedTime));
-				newMap.put("session:thisAccessedTime", getSerializer().serialize(thisAccessedTime));
-
-				getManager().getSessionOperator()
-					.hmset(getSessionKey(), newMap);
-				
-				if (getExpire() > 0) {
-					getManager().getSessionOperator()
-						.expire(getSessionKey(), getExpire());
-				}
+				touch(false);
 			} catch (Exception exception) {
 				log.error("Cannot set end access", exception);
 			}
@@ -158,11 +235,40 @@ public class RedisClusterSession extends StandardSession {
 	@Override
 	public Object getAttribute(String name) {
 		if (this.id != null && name != null) {
+			if (getManager().isSticky()) {
+				// the local copy is up to date, as checked by refresh()
+				return trackRead(name, localAttributes.get(name));
+			}
+
+			if (isPending(name)) {
+				// set or removed by the request, not yet sent: as held locally
+				return trackRead(name, localAttributes.get(name));
+			}
+
+			if (nearCache != null && nearCache.contains(name)) {
+				Object o = nearCache.get(name);
+				if (o instanceof RedisClusterSessionAttributes.Serialized) {
+					o = ((RedisClusterSessionAttributes.Serialized) o).get(this);
+				}
+				return trackRead(name, o);
+			}
+
 			try {
-				String value = getManager().getSessionOperator()
-						.hget(getSessionKey(), name);
+				awaitWrites();
+				RedisClusterSessionOperator operator = getManager().getSessionOperator();
+				byte[] value = isReplicaReadable() ? operator.hgetFromReplica(getSessionKey(), name)
+						: operator.hget(getSessionKey(), name);
 
-				return getSerializer().deserialize(value);
+				Object o = readValue(value);
+				if (value == null) {
+					fingerprints.remove(name);
+				} else {
+					fingerprints.put(name, fingerprintOf(name, value));
+				}
+				if (nearCache != null) {
+					nearCache.put(name, o);
+				}
+				return trackRead(name, o);
 			} catch (ClassNotFoundException|IOException exception) {
 				log.error("Cannot get attribute", exception);
 			}
@@ -174,7 +280,7 @@ public class RedisClusterSession extends StandardSession {
 	public Enumeration<String> getAttributeNames() {
 		if (this.id != null) {
 			try {
-				return Collections.enumeration(getManager().getSessionOperator().hkeys(getSessionKey()));
+				return Collections.enumeration(getNames());
 			} catch (Exception exception) {
 				log.error("Cannot get attribute names", exception);
 			}
@@ -187,8 +293,7 @@ public class RedisClusterSession extends StandardSession {
 	public String[] getValueNames() {
 		if (this.id != null) {
 			try {
-				Set<String> keys = getManager().getSessionOperator()
-						.hkeys(getSessionKey());
+				Set<String> keys = getNames();
 
 				return keys.toArray(new String[keys.size()]);
 			} catch (Exception exception) {
@@ -198,25 +303,80 @@ public class RedisClusterSession extends StandardSession {
 		return null;
 	}
 
+	private Set<String> getNames() {
+		if (getManager().isSticky()) {
+			return new HashSet<String>(localAttributes.keySet());
+		}
+
+		Set<String> names = nearCache == null ? null : nearCache.getNames();
+
+		if (names == null) {
+			awaitWrites();
+			names = new HashSet<String>();
+			RedisClusterSessionOperator operator = getManager().getSessionOperator();
+			for (String field : isReplicaReadable() ? operator.hkeysFromReplica(getSessionKey()) : operator.hkeys(getSessionKey())) {
+				if (!field.startsWith(INTERNAL_FIELD_PREFIX)) {
+					names.add(field);
+				}
+			}
+
+			names = withPending(names);
+
+			if (nearCache != null) {
+				nearCache.setNames(names);
+			}
+			return names;
+		}
+		return withPending(names);
+	}
+
+	/**
+	 * @return the names with the attributes set or removed by the current
+	 * request in write-behind mode, and not sent yet
+	 */
+	private synchronized Set<String> withPending(Set<String> names) {
+		if (batch == null) return names;
+
+		Set<String> pending = new HashSet<String>(names);
+		for (String field : batch.getFields().keySet()) {
+			if (!field.startsWith(INTERNAL_FIELD_PREFIX)) {
+				pending.add(field);
+			}
+		}
+		pending.removeAll(batch.getRemovedFields());
+		return pending;
+	}
+
+	/**
+	 * @return true if the attribute has been set or removed by the current
+	 * request in write-behind mode, and the change not sent yet
+	 */
+	private synchronized boolean isPending(String name) {
+		return batch != null && (batch.getFields().containsKey(name) || batch.getRemovedFields().contains(name));
+	}
+
 	@Override
 	public void setAttribute(String name, Object value, boolean notify) {
 		// NOTE: Null value is the same as removeAttribute() - checked & called by super.setAttribute()
 
-		// retrieve current value of this attribute
-		Object o = super.getAttribute(name);
+		if (notify && name != null && localAttributes.peek(name) instanceof RedisClusterSessionAttributes.Serialized) {
+			// the listeners are given the replaced value
+			localAttributes.get(name);
+		}
 
 		super.setAttribute(name, value, notify);
 
 		if (this.id != null && name != null && value != null) {
 			try {
-				String outboundValue = getSerializer().serialize(o);
-				String inboundValue = getSerializer().serialize(value);
+				byte[] inboundValue = getSerializer().serialize(value);
+				forgetRead(name);
 
-				// only hset() the cluster if the value has really changed
-				if(!outboundValue.equals(inboundValue)) {
-					getManager().getSessionOperator()
-						.hset(getSessionKey(), name, inboundValue);
+				if (nearCache != null) {
+					nearCache.put(name, value);
 				}
+
+				// only hset() the cluster if the value has really changed
+				storeIfChanged(name, inboundValue);
 			} catch (Exception exception) {
 				log.error("Cannot set attribute", exception);
 			}
@@ -225,12 +385,24 @@ public class RedisClusterSession extends StandardSession {
 
 	@Override
 	protected void removeAttributeInternal(String name, boolean notify) {
+		if (notify && name != null) {
+			// the listeners are given the removed value
+			localAttributes.get(name);
+		}
+
 		super.removeAttributeInternal(name, notify);
 
 		if (this.id != null && name != null) {
 			try {
-				getManager().getSessionOperator()
-					.hdel(getSessionKey(), name);
+				forgetRead(name);
+				fingerprints.remove(name);
+				resize(name, null);
+				release(name);
+				if (nearCache != null) {
+					nearCache.put(name, null);
+				}
+
+				unstore(name);
 			} catch (Exception exception) {
 				log.error("Cannot remove attribute", exception);
 			}
@@ -241,48 +413,309 @@ public class RedisClusterSession extends StandardSession {
 		if (this.id == null) return;
 
 		try {
-			Map<String, String> newMap = new HashMap<String, String>();
-
-			newMap.put("session:creationTime", getSerializer().serialize(creationTime));
-			newMap.put("session:lastAccessedTime", getSerializer().serialize(lastAccessedTime));
-			newMap.put("session:thisAccessedTime", getSerializer().serialize(thisAccessedTime));
-			newMap.put("session:maxInactiveInterval", getSerializer().serialize(maxInactiveInterval));
-			newMap.put("session:isValid", getSerializer().serialize(isValid));
-			newMap.put("session:isNew", getSerializer().serialize(isNew));
+			Map<String, byte[]> newMap = new HashMap<String, byte[]>();
+
+			newMap.put(RedisClusterSessionMetadata.FIELD, getMetadata());
+			newMap.put(CREATED_FIELD, CREATED);
 			newMap.put("session:authType", getSerializer().serialize(authType));
 			newMap.put("session:principal", getSerializer().serialize(principal));
 
 			for (Enumeration<String> e = super.getAttributeNames(); e.hasMoreElements();) {
 				String key = e.nextElement();
 				if(key == null) continue;
-				Object o = super.getAttribute(key);
-				newMap.put(key, getSerializer().serialize(o));
+				Object o = localAttributes.peek(key);
+				byte[] value = o instanceof RedisClusterSessionAttributes.Serialized
+						? ((RedisClusterSessionAttributes.Serialized) o).data : getSerializer().serialize(o);
+				fingerprints.put(key, fingerprintOf(key, value));
+				resize(key, value);
+				newMap.put(key, offload(key, value));
 			}
 
-			getManager().getSessionOperator()
-				.hmset(getSessionKey(), newMap);
-
-			if (getExpire() > 0) {
-				getManager().getSessionOperator()
-					.expire(getSessionKey(), getExpire());
+			RedisClusterSessionMetrics metrics = getManager().getMetrics();
+			if (metrics != null) {
+				metrics.recordSessionSize(newMap);
 			}
+
+			// written from scratch: the version count starts over with this write
+			version = 0;
+			stale = false;
+
+			// the packed metadata field replaces the fields of a previous release
+			store(newMap, legacyMetadata ? LEGACY_METADATA_FIELDS : Collections.emptySet(), true, true);
+			legacyMetadata = false;
+			touchedAt = System.currentTimeMillis();
 		} catch (Exception exception) {
 			log.error("Cannot save", exception);
 		}
 	}
 
+	/**
+	 * Sends the changes recorded during the request in a single round trip.
+	 */
+	protected void flush() {
+		RedisClusterSessionBatch pending;
+		synchronized (this) {
+			pending = batch;
+			batch = null;
+		}
+
+		// an invalidated session has already been deleted from the cluster
+		if (pending == null || this.id == null || !isValidInternal()) return;
+
+		try {
+			if (pending.isAccessed()) {
+				// endAccess() is called once the request has left the valves:
+				// write what it would write now, so it does not cost another round trip
+				long now = System.currentTimeMillis();
+				pending.put(RedisClusterSessionMetadata.FIELD,
+						RedisClusterSessionMetadata.encode(creationTime, now, now, maxInactiveInterval, isValid, false));
+				endAccessFlushed = true;
+			}
+
+			RedisClusterSessionToucher toucher = getManager().getToucher();
+			if (toucher != null && pending.isTouchOnly()) {
+				// nothing but an access: joins the next batch of access time updates
+				toucher.touch(getSessionKey(), pending.getFields().get(RedisClusterSessionMetadata.FIELD), getExpire());
+			} else if (!pending.isEmpty()) {
+				if (pending.getFields().containsKey(RedisClusterSessionMetadata.FIELD)) {
+					cancelTouch();
+				}
+
+				String versionField = pending.isChanged() && isVersioned() ? VERSION_FIELD : null;
+				int expire = pending.isExpire() ? getExpire() : 0;
+				if (pending.isChanged()) {
+					changedAt = System.currentTimeMillis();
+				}
+
+				if (versionField == null) {
+					send(operator -> operator.flush(getSessionKey(), pending.getFields(), pending.getRemovedFields(), null, expire),
+						operator -> operator.flush(getSessionKey(), pending.getFields(), pending.getRemovedFields(), null, expire));
+				} else {
+					compareAndFlush(pending.getFields(), pending.getRemovedFields(), expire);
+				}
+			}
+		} catch (Exception exception) {
+			// the access time may not have been refreshed: due again at the next access
+			touchedAt = 0;
+			log.error("Cannot flush", exception);
+		}
+	}
+
+	/**
+	 * Writes the values read during the request which have been changed in
+	 * place since, as told by their fingerprints.
+	 */
+	protected void persistMutations() {
+		Map<String, Object> values;
+		synchronized (this) {
+			values = readValues;
+			readValues = null;
+		}
+
+		if (values == null || this.id == null || !isValidInternal()) return;
+
+		for (Entry<String, Object> entry : values.entrySet()) {
+			try {
+				storeIfChanged(entry.getKey(), getSerializer().serialize(entry.getValue()));
+			} catch (Exception exception) {
+				log.error("Cannot persist attribute", exception);
+			}
+		}
+	}
+
 	protected void delete() {
-		if (this.id == null) return;
+		try {
+			List<String> keys = detach();
+			if (keys.size() == 1) {
+				getManager().getSessionOperator().del(keys.get(0));
+			} else if (!keys.isEmpty()) {
+				getManager().getSessionOperator().delAll(keys);
+			}
+		} catch (Exception exception) {
+			log.error("Cannot delete session", exception);
+		}
+	}
+
+	/**
+	 * Drops the pending writes of a session about to be deleted.
+	 *
+	 * @return the keys of the session in the cluster, to delete
+	 */
+	protected List<String> detach() {
+		synchronized (this) {
+			batch = null;
+		}
+
+		if (this.id == null) return Collections.emptyList();
+
+		cancelTouch();
+		awaitWrites();
+
+		List<String> keys = new ArrayList<String>(1 + offloaded.size());
+		keys.add(getSessionKey());
+		for (RedisClusterSessionOffload offload : offloaded.values()) {
+			keys.add(offload.getKey(getSessionKey()));
+		}
+		offloaded.clear();
+		return keys;
+	}
+
+	/**
+	 * In sticky mode, reloads the local copy of the session when another node
+	 * has changed it: when its version in the cluster, read once per request,
+	 * is not the one of the local copy, or when a write of this node has
+	 * revealed a write of another one. The route suffix of the id is not
+	 * trusted: a session given back to this node after a failover has been
+	 * changed by the node which took it over.
+	 *
+	 * @return false if the session no longer exists in the cluster
+	 */
+	protected boolean refresh() {
+		if (this.id == null) return true;
+
+		try {
+			if (!stale && readVersion() == version) return true;
+
+			awaitWrites();
+			Map<String, byte[]> attrs = getManager().getSessionOperator().getMap(getSessionKey());
+			if (attrs == null || attrs.isEmpty()) return false;
+
+			synchronized (this) {
+				batch = null;
+				readValues = null;
+			}
+			localAttributes.clear();
+			fingerprints.clear();
+			offloaded.clear();
+			if (sizes != null) {
+				getManager().resized(this, -getResidentSize());
+				sizes.clear();
+			}
+
+			if (!load(new HashMap<String, byte[]>(attrs))) return false;
+
+			activate();
+		} catch (Exception exception) {
+			log.error("Cannot refresh session", exception);
+		}
+		return true;
+	}
+
+	/**
+	 * Gives its id to a session prefetched from the cluster at start and
+	 * registers it on this node, without counting an access nor writing
+	 * anything: it keeps the access times read from the cluster.
+	 *
+	 * @return false if a request has registered the session meanwhile, this
+	 * copy is then to be discarded
+	 */
+	protected boolean prefetched(String id) {
+		this.id = id;
+		return getManager().registerIfAbsent(this);
+	}
+
+	/**
+	 * Gives its id to a session loaded from the cluster and registers it on
+	 * this node. Unlike {@link #setId(String)}, the session is not written back:
+	 * only the access times and the time to live are updated, in one write,
+	 * unless another node has just refreshed them.
+	 */
+	protected void hydrate(String id) {
+		super.access();
+		super.endAccess();
+
+		this.id = id;
+		getManager().register(this);
+
+		if (!legacyMetadata && !isTouchDue()) return;
 
 		try {
-			getManager().getSessionOperator()
-				.del(getSessionKey());
+			Map<String, byte[]> fields = new HashMap<String, byte[]>();
+			fields.put(RedisClusterSessionMetadata.FIELD, getMetadata());
+			if (legacyMetadata) {
+				// the packed metadata field replaces the fields of a previous release
+				fields.put(CREATED_FIELD, CREATED);
+			}
+			store(fields, legacyMetadata ? LEGACY_METADATA_FIELDS : Collections.emptySet(), false, true);
+			legacyMetadata = false;
+			touchedAt = System.currentTimeMillis();
 		} catch (Exception exception) {
-			log.error("Cannot set authType", exception);
+			log.error("Cannot update access", exception);
+		}
+	}
+
+	/**
+	 * Loads the fields read from the cluster. The attributes are kept serialized
+	 * until they are first read.
+	 *
+	 * @return true if the loaded session is valid, and has been stored whole
+	 */
+	protected boolean load(Map<String, byte[]> attrs) throws IOException, ClassNotFoundException {
+		byte[] metadata = attrs.remove(RedisClusterSessionMetadata.FIELD);
+		// the hashes of a previous release are checked by their isValid field
+		boolean created = attrs.remove(CREATED_FIELD) != null || metadata == null;
+		if (metadata != null) {
+			RedisClusterSessionMetadata record = RedisClusterSessionMetadata.decode(metadata);
+			this.creationTime = record.creationTime;
+			this.lastAccessedTime = record.lastAccessedTime;
+			this.thisAccessedTime = record.thisAccessedTime;
+			this.maxInactiveInterval = record.maxInactiveInterval;
+			this.isValid = record.isValid;
+			this.isNew = record.isNew;
+
+			attrs.keySet().removeAll(LEGACY_METADATA_FIELDS);
+		} else {
+			loadLegacyMetadata(attrs);
+		}
+
+		// as last refreshed by any node
+		touchedAt = this.thisAccessedTime;
+
+		byte[] version = attrs.remove(VERSION_FIELD);
+		this.version = parseVersion(version);
+		this.stale = false;
+
+		String authType = (String) getSerializer().deserialize(attrs.remove("session:authType"));
+		if(authType != null) {
+			this.authType = authType;
+		}
+
+		GenericPrincipal principal = (GenericPrincipal) getSerializer().deserialize(attrs.remove("session:principal"));
+		if(principal != null) {
+			this.principal = principal;
+		}
+
+		for (Entry<String, byte[]> entry : attrs.entrySet()) {
+			localAttributes.putSerialized(entry.getKey(), entry.getValue());
+			fingerprints.put(entry.getKey(), fingerprintOf(entry.getKey(), entry.getValue()));
+			resize(entry.getKey(), entry.getValue());
 		}
+
+		if (nearCache != null) {
+			// the whole hash has just been read: it is a consistent snapshot of the given version,
+			// sharing the lazily deserialized values of the local attributes
+			nearCache.validate(parseVersion(version));
+			for (String name : attrs.keySet()) {
+				nearCache.put(name, localAttributes.peek(name));
+			}
+			nearCache.setNames(attrs.keySet());
+		}
+
+		return this.isValid && created;
 	}
 
-	protected void load(Map<String, Object> attrs) {
+	/**
+	 * Reads the metadata of a session stored by a previous release, one
+	 * serialized field per value.
+	 */
+	private void loadLegacyMetadata(Map<String, byte[]> fields) throws IOException, ClassNotFoundException {
+		legacyMetadata = fields.containsKey("session:isValid");
+
+		Map<String, Object> attrs = new HashMap<String, Object>();
+		for (String field : LEGACY_METADATA_FIELDS) {
+			attrs.put(field, getSerializer().deserialize(fields.remove(field)));
+		}
+
 		Long creationTime = (Long) attrs.remove("session:creationTime");
 		if (creationTime != null) {
 			this.creationTime = creationTime;
@@ -312,29 +745,483 @@ public class RedisClusterSession extends StandardSession {
 		if (isNew != null) {
 			this.isNew = isNew;
 		}
+	}
 
-		String authType = (String) attrs.remove("session:authType");
-		if(authType != null) {
-			this.authType = authType;
+	/**
+	 * Activates the attributes already deserialized. The ones still serialized
+	 * are activated when they are first read.
+	 */
+	@Override
+	public void activate() {
+		if (ACTIVITY_CHECK) {
+			accessCount = new AtomicInteger();
 		}
 
-		GenericPrincipal principal = (GenericPrincipal) attrs.remove("session:principal");
-		if(principal != null) {
-			this.principal = principal;
+		fireSessionEvent(Session.SESSION_ACTIVATED_EVENT, null);
+
+		for (String key : keys()) {
+			Object attribute = localAttributes.peek(key);
+			if (attribute instanceof RedisClusterSessionAttributes.Serialized) {
+				if (((RedisClusterSessionAttributes.Serialized) attribute).deferActivation()) continue;
+				attribute = localAttributes.get(key);
+			}
+			activateAttribute(attribute);
+		}
+	}
+
+	void activateAttribute(Object attribute) {
+		if (attribute instanceof HttpSessionActivationListener) {
+			try {
+				((HttpSessionActivationListener) attribute).sessionDidActivate(new HttpSessionEvent(getSession()));
+			} catch (Throwable t) {
+				ExceptionUtils.handleThrowable(t);
+				manager.getContext().getLogger().error(sm.getString("standardSession.attributeEvent"), t);
+			}
+		}
+	}
+
+	Object deserializeAttribute(byte[] data) {
+		try {
+			return readValue(data);
+		} catch (ClassNotFoundException|IOException exception) {
+			log.error("Cannot get attribute", exception);
+		}
+		return null;
+	}
+
+	/**
+	 * Deserializes the field of an attribute, reading the value it refers to
+	 * as it arrives if the attribute is stored out of the session hash.
+	 */
+	private Object readValue(byte[] data) throws IOException, ClassNotFoundException {
+		if (!RedisClusterSessionOffload.isReference(data)) {
+			return getSerializer().deserialize(data);
+		}
+
+		RedisClusterSessionOffload offload = RedisClusterSessionOffload.decode(data);
+		try (InputStream in = offload.open(getManager().getSessionOperator(), getSessionKey())) {
+			return getSerializer().deserialize(in);
+		}
+	}
+
+	/**
+	 * @return the fingerprint of the value of an attribute as read from the
+	 * cluster, the one kept in the reference if stored out of the session hash
+	 */
+	private long fingerprintOf(String name, byte[] data) {
+		if (!RedisClusterSessionOffload.isReference(data)) {
+			return RedisClusterSessionFingerprint.of(data);
+		}
+
+		RedisClusterSessionOffload offload = RedisClusterSessionOffload.decode(data);
+		offloaded.put(name, offload);
+		return offload.fingerprint;
+	}
+
+	/**
+	 * Writes the serialized value of an attribute to a key of its own if it
+	 * exceeds the threshold of the manager.
+	 *
+	 * @return the bytes to store in the field of the attribute: the value, or a reference to it
+	 */
+	private byte[] offload(String name, byte[] value) throws IOException {
+		if (RedisClusterSessionOffload.isReference(value)) return value;
+
+		int threshold = getManager().getLargeAttributeThreshold();
+		if (threshold <= 0 || value.length < threshold) {
+			release(name);
+			return value;
+		}
+
+		RedisClusterSessionOffload offload = RedisClusterSessionOffload.of(name, value,
+				getManager().getLargeAttributeChunkSize(), getManager().isLargeAttributeCompression());
+		// written before the reference to it, whatever the write mode of the session
+		getManager().getSessionOperator()
+			.flush(offload.getKey(getSessionKey()), offload.getFields(), Collections.emptySet(), null, getExpire());
+
+		RedisClusterSessionOffload previous = offloaded.put(name, offload);
+		if (previous != null && previous.fingerprint != offload.fingerprint) {
+			retire(previous);
+		}
+		return offload.encode();
+	}
+
+	/**
+	 * Lets the value of an attribute no longer stored out of the session hash expire.
+	 */
+	private void release(String name) {
+		RedisClusterSessionOffload previous = offloaded.remove(name);
+		if (previous != null) {
+			retire(previous);
+		}
+	}
+
+	private void retire(RedisClusterSessionOffload offload) {
+		String key = offload.getKey(getSessionKey());
+		send(operator -> operator.expire(key, RedisClusterSessionOffload.GRACE),
+			operator -> operator.expire(key, RedisClusterSessionOffload.GRACE));
+	}
+
+	/**
+	 * Extends the time to live of the values stored out of the session hash
+	 * along with the one of the session.
+	 */
+	private void expireOffloaded() {
+		int expire = offloaded.isEmpty() ? 0 : getExpire();
+		if (expire <= 0) return;
+
+		for (RedisClusterSessionOffload offload : offloaded.values()) {
+			String key = offload.getKey(getSessionKey());
+			send(operator -> operator.expire(key, expire), operator -> operator.expire(key, expire));
+		}
+	}
+
+	private long readVersion() {
+		awaitWrites();
+		return parseVersion(getManager().getSessionOperator().hget(getSessionKey(), VERSION_FIELD));
+	}
+
+	private static long parseVersion(byte[] version) {
+		return version == null ? 0 : Long.parseLong(new String(version, StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Records a change in the pending batch when the current request runs in
+	 * write-behind mode.
+	 *
+	 * @return false if the change has to be sent to the cluster right away
+	 */
+	private synchronized boolean record(Consumer<RedisClusterSessionBatch> change) {
+		if (!getManager().enlist(this)) return false;
+
+		if (batch == null) {
+			batch = new RedisClusterSessionBatch();
+		}
+		change.accept(batch);
+		return true;
+	}
+
+	/**
+	 * Keeps a mutable value handed out by getAttribute(), to check it for
+	 * changes made in place when the request ends.
+	 */
+	private Object trackRead(String name, Object value) {
+		if (value == null || isImmutable(value) || !getManager().isPersistMutations()) return value;
+
+		synchronized (this) {
+			if (getManager().track(this)) {
+				if (readValues == null) {
+					readValues = new HashMap<String, Object>();
+				}
+				readValues.put(name, value);
+			}
+		}
+		return value;
+	}
+
+	private synchronized void forgetRead(String name) {
+		if (readValues != null) {
+			readValues.remove(name);
+		}
+	}
+
+	private static boolean isImmutable(Object value) {
+		return value instanceof String || value instanceof Number && value.getClass().getName().startsWith("java.lang.")
+				|| value instanceof Boolean || value instanceof Character || value instanceof Enum;
+	}
+
+	/**
+	 * Stores the serialized value of an attribute unless its fingerprint
+	 * matches the one last written or read by this node.
+	 */
+	private void storeIfChanged(String name, byte[] value) throws IOException {
+		Long fingerprint = RedisClusterSessionFingerprint.of(value);
+		if (!fingerprint.equals(fingerprints.put(name, fingerprint))) {
+			resize(name, value);
+			store(name, offload(name, value));
+		}
+	}
+
+	/**
+	 * Accounts the size of an attribute held on this node, when the manager
+	 * bounds its residency in bytes.
+	 *
+	 * @param value the serialized value, or null if the attribute is removed
+	 */
+	private void resize(String name, byte[] value) {
+		if (sizes == null) return;
+
+		Integer previous = value == null ? sizes.remove(name) : sizes.put(name, value.length);
+		long delta = (value == null ? 0 : value.length) - (previous == null ? 0 : previous);
+		if (delta != 0) {
+			getManager().resized(this, delta);
 		}
+	}
+
+	/**
+	 * @return the valid flag, without expiring the session if it has timed out like isValid()
+	 */
+	@Override
+	protected boolean isValidInternal() {
+		return super.isValidInternal();
+	}
+
+	/**
+	 * @return the estimated size in bytes of the attributes held on this node, 0 if not accounted
+	 */
+	protected long getResidentSize() {
+		if (sizes == null) return 0;
 
-		for (Entry<String, Object> entry : attrs.entrySet()) {
-			setAttribute(entry.getKey(), entry.getValue(), false);
+		long size = 0;
+		for (Integer length : sizes.values()) {
+			size += length;
 		}
+		return size;
+	}
+
+	/**
+	 * Clears the access mark of the session, for the eviction sweeps of the manager.
+	 *
+	 * @return true if the session has been accessed since the previous sweep
+	 */
+	protected boolean clearReferenced() {
+		boolean wasReferenced = referenced;
+		referenced = false;
+		return wasReferenced;
+	}
+
+	/**
+	 * @return true if the access time and the time to live of the session have
+	 * not been refreshed in the cluster for the configured fraction of its max inactive interval
+	 */
+	private boolean isTouchDue() {
+		long window = getManager().getTouchWindow(maxInactiveInterval);
+		return window <= 0 || System.currentTimeMillis() - touchedAt >= window;
+	}
+
+	/**
+	 * Refreshes the access time and the time to live of the session, at the end
+	 * of the request in write-behind mode or with the next batch of the toucher
+	 * if enabled.
+	 */
+	private void touch(boolean access) {
+		touchedAt = System.currentTimeMillis();
+		byte[] metadata = getMetadata();
+		expireOffloaded();
+
+		if (record(changes -> { changes.put(RedisClusterSessionMetadata.FIELD, metadata); changes.expire(); if (access) changes.access(); })) {
+			return;
+		}
+
+		RedisClusterSessionToucher toucher = getManager().getToucher();
+		if (toucher != null) {
+			toucher.touch(getSessionKey(), metadata, getExpire());
+		} else {
+			Map<String, byte[]> fields = Collections.singletonMap(RedisClusterSessionMetadata.FIELD, metadata);
+			int expire = getExpire();
+			try {
+				// not refreshed if the write fails: due again at the next access
+				send(operator -> operator.flush(getSessionKey(), fields, Collections.emptySet(), null, expire)
+						.whenComplete((result, exception) -> { if (exception != null) touchedAt = 0; }),
+					operator -> operator.flush(getSessionKey(), fields, Collections.emptySet(), null, expire));
+			} catch (RuntimeException exception) {
+				touchedAt = 0;
+				throw exception;
+			}
+		}
+	}
+
+	/**
+	 * Sends a write whose reply is not needed, without waiting for it when
+	 * asynchronous writes are enabled.
+	 */
+	private void send(Function<RedisClusterSessionAsyncOperator, CompletionStage<?>> async, Consumer<RedisClusterSessionOperator> sync) {
+		if (getManager().isAsyncWrites()) {
+			lastWrite = getManager().writeAsync(async);
+		} else {
+			sync.accept(getManager().getSessionOperator());
+		}
+	}
+
+	/**
+	 * Waits for the asynchronous writes of the session, before a command which
+	 * must not overtake them.
+	 */
+	private void awaitWrites() {
+		CompletableFuture<Void> write = lastWrite;
+		if (write != null && !write.isDone()) {
+			write.join();
+		}
+	}
+
+	/**
+	 * Drops the batched access time update of the session, about to be
+	 * superseded by a write of its metadata.
+	 */
+	private void cancelTouch() {
+		RedisClusterSessionToucher toucher = getManager().getToucher();
+		if (toucher != null) {
+			toucher.cancel(getSessionKey());
+		}
+	}
+
+	private void store(String field, byte[] value) {
+		store(Collections.singletonMap(field, value), Collections.emptySet(), true, false);
+	}
+
+	private void unstore(String field) {
+		store(Collections.emptyMap(), Collections.singleton(field), true, false);
+	}
+
+	private void storeMetadata(boolean expire) {
+		store(Collections.singletonMap(RedisClusterSessionMetadata.FIELD, getMetadata()), Collections.emptySet(), false, expire);
+	}
+
+	/**
+	 * @param changed the attributes of the session are changed, its version has to be incremented
+	 * @param expire the time to live of the session has to be refreshed
+	 */
+	private void store(Map<String, byte[]> fields, Set<String> removedFields, boolean changed, boolean expire) {
+		if (expire) {
+			expireOffloaded();
+		}
+		if (record(changes -> {
+				changes.putAll(fields);
+				removedFields.forEach(changes::remove);
+				if (changed) changes.change();
+				if (expire) changes.expire();
+			})) {
+			return;
+		}
+
+		if (fields.containsKey(RedisClusterSessionMetadata.FIELD)) {
+			cancelTouch();
+		}
+		if (changed) {
+			changedAt = System.currentTimeMillis();
+		}
+
+		String versionField = changed && isVersioned() ? VERSION_FIELD : null;
+
+		if (versionField == null && !expire && removedFields.isEmpty() && fields.size() == 1) {
+			Entry<String, byte[]> field = fields.entrySet().iterator().next();
+			send(operator -> operator.hset(getSessionKey(), field.getKey(), field.getValue()),
+				operator -> operator.hset(getSessionKey(), field.getKey(), field.getValue()));
+		} else if (versionField == null && !expire && fields.isEmpty() && removedFields.size() == 1) {
+			String field = removedFields.iterator().next();
+			send(operator -> operator.hdel(getSessionKey(), field),
+				operator -> operator.hdel(getSessionKey(), field));
+		} else if (versionField == null) {
+			int ttl = expire ? getExpire() : 0;
+			send(operator -> operator.flush(getSessionKey(), fields, removedFields, null, ttl),
+				operator -> operator.flush(getSessionKey(), fields, removedFields, null, ttl));
+		} else {
+			compareAndFlush(fields, removedFields, expire ? getExpire() : 0);
+		}
+	}
+
+	/**
+	 * @return true if the replicas have had the time to receive the last
+	 * changes of the session, made by this node or by the previous request
+	 */
+	private boolean isReplicaReadable() {
+		if (!getManager().isReadFromReplicas()) return false;
+
+		long delay = getManager().getReplicaReadDelay();
+		long now = System.currentTimeMillis();
+		return now - changedAt >= delay && now - lastAccessedTime >= delay;
+	}
+
+	/**
+	 * @return true if the writes of attributes increment the version of the session
+	 */
+	private boolean isVersioned() {
+		return nearCache != null || getManager().isSticky() || getManager().isVersioning();
+	}
+
+	/**
+	 * Writes changes to the attributes, only if the session is still at the
+	 * version known by this node. When another node has written in between,
+	 * the cached state is dropped and the changes are applied over the current
+	 * version, or discarded, as set by the conflict policy of the manager.
+	 */
+	private void compareAndFlush(Map<String, byte[]> fields, Set<String> removedFields, int expire) {
+		awaitWrites();
+
+		RedisClusterSessionOperator operator = getManager().getSessionOperator();
+		long expected = Math.max(0, version);
+		for (int attempt = 0; ; attempt++) {
+			long result = operator.compareAndFlush(getSessionKey(), fields, removedFields, VERSION_FIELD, expected, expire);
+			if (result == RedisClusterSessionScripts.MISSING) {
+				// deleted or expired on another node: the changes would recreate it partially
+				log.warn("Session " + this.id + " no longer exists, changes discarded");
+				return;
+			}
+			if (result > 0) {
+				written(result);
+				return;
+			}
+
+			expected = -1 - result;
+			conflict(expected);
+
+			if (getManager().isRejectConflicts()) {
+				log.warn("Session " + this.id + " changed by another node, changes discarded");
+				return;
+			}
+			if (attempt >= MAX_CONFLICT_RETRIES) {
+				log.warn("Session " + this.id + " changed concurrently, changes written unconditionally");
+				written(operator.flush(getSessionKey(), fields, removedFields, VERSION_FIELD, expire));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Drops what this node knows of a session changed by another node.
+	 */
+	private void conflict(long currentVersion) {
+		getManager().countVersionConflict();
+
+		fingerprints.clear();
+		if (nearCache != null) {
+			nearCache.validate(currentVersion);
+		}
+		version = currentVersion;
+		if (getManager().isSticky()) {
+			stale = true;
+		}
+	}
+
+	/**
+	 * Follows the version returned by a write of this node.
+	 */
+	private void written(long newVersion) {
+		if (nearCache != null && !nearCache.written(newVersion)) {
+			fingerprints.clear();
+		}
+
+		if (version + 1 != newVersion && getManager().isSticky()) {
+			// another node has written in between: the local copy is reloaded at the next request
+			stale = true;
+		}
+		version = newVersion;
+	}
+
+	private byte[] getMetadata() {
+		return RedisClusterSessionMetadata.encode(creationTime, lastAccessedTime, thisAccessedTime, maxInactiveInterval, isValid, isNew);
 	}
 
 	private int getExpire() {
 		int expire = getManager().getContextInternal().getSessionTimeout() * 60;
-		return expire > 0 ? expire : 0;
+		if (expire <= 0) return 0;
+
+		// outlives the refreshes skipped by the touch threshold
+		return expire + (int) TimeUnit.MILLISECONDS.toSeconds(getManager().getTouchWindow(maxInactiveInterval) + 999);
 	}
 
 	protected String getSessionKey() {
-		return RedisClusterSessionManager.buildSessionKey(this);
+		return getManager().buildSessionKey(this);
 	}
 
 	@Override
@@ -344,8 +1231,7 @@ public class RedisClusterSession extends StandardSession {
 
 		if (this.id != null) {
 			try {
-				getManager().getSessionOperator()
-					.hset(getSessionKey(), "session:authType", getSerializer().serialize(authType));
+				store("session:authType", getSerializer().serialize(authType));
 			} catch (Exception exception) {
 				log.error("Cannot set authType", exception);
 			}
@@ -359,8 +1245,7 @@ public class RedisClusterSession extends StandardSession {
 
 		if (this.id != null) {
 			try {
-				getManager().getSessionOperator()
-					.hset(getSessionKey(), "session:principal", getSerializer().serialize(principal));
+				store("session:principal", getSerializer().serialize(principal));
 			} catch (Exception exception) {
 				log.error("Cannot set principal", exception);
 			}
@@ -0,0 +1,38 @@
+package org.apache.tomcat.session.redis;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Non-blocking variant of {@link RedisClusterSessionOperator}: the commands
+ * are sent without waiting for their replies. The commands on a same session
+ * key complete in the order they were sent.
+ *
+ */
+public interface RedisClusterSessionAsyncOperator {
+
+	public CompletionStage<Map<String, byte[]>> getMap(String sessionKey);
+
+	public CompletionStage<Void> del(String sessionKey);
+
+	public CompletionStage<Void> expire(String sessionKey, int expire);
+
+	public CompletionStage<Void> hset(String sessionKey, String field, byte[] value);
+
+	public CompletionStage<Void> hdel(String sessionKey, String field);
+
+	public CompletionStage<Set<String>> hkeys(String sessionKey);
+
+	public CompletionStage<byte[]> hget(String sessionKey, String field);
+
+	/**
+	 * @see RedisClusterSessionOperator#flush(String, Map, Set, String, int)
+	 */
+	public CompletionStage<Long> flush(String sessionKey, Map<String, byte[]> fields, Set<String> removedFields, String versionField, int expire);
+
+	/**
+	 * @see RedisClusterSessionOperator#publish(String, String)
+	 */
+	public CompletionStage<Void> publish(String channel, String message);
+}
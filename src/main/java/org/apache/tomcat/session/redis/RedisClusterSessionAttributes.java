@@ -0,0 +1,90 @@
+package org.apache.tomcat.session.redis;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local attributes of a session, where the values loaded from the cluster stay
+ * serialized until they are first read.
+ *
+ * {@link org.apache.catalina.session.StandardSession} reads its attributes through {@link #get(Object)}
+ * only, which deserializes a value on demand and replaces it in the map.
+ *
+ */
+class RedisClusterSessionAttributes extends ConcurrentHashMap<String, Object> {
+
+	private static final long serialVersionUID = 5216473541587372317L;
+
+	private final transient RedisClusterSession session;
+
+	RedisClusterSessionAttributes(RedisClusterSession session) {
+		this.session = session;
+	}
+
+	@Override
+	public Object get(Object key) {
+		Object value = super.get(key);
+
+		if (value instanceof Serialized) {
+			Serialized serialized = (Serialized) value;
+			value = serialized.get(session);
+
+			if (value == null) {
+				remove(key, serialized);
+			} else {
+				replace((String) key, serialized, value);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * @return the value of the attribute, or its {@link Serialized} form if it has not been read yet
+	 */
+	Object peek(String name) {
+		return super.get(name);
+	}
+
+	void putSerialized(String name, byte[] data) {
+		put(name, new Serialized(data));
+	}
+
+	/**
+	 * Attribute value as read from the cluster, deserialized once on first use.
+	 */
+	static final class Serialized {
+
+		final byte[] data;
+
+		private boolean deserialized = false;
+		private boolean activationPending = false;
+		private Object value;
+
+		Serialized(byte[] data) {
+			this.data = data;
+		}
+
+		synchronized Object get(RedisClusterSession session) {
+			if (!deserialized) {
+				value = session.deserializeAttribute(data);
+				deserialized = true;
+
+				if (activationPending) {
+					session.activateAttribute(value);
+				}
+			}
+			return value;
+		}
+
+		/**
+		 * Postpones the activation of the value until it is deserialized.
+		 *
+		 * @return false if the value is already deserialized and has to be activated now
+		 */
+		synchronized boolean deferActivation() {
+			if (deserialized) return false;
+
+			activationPending = true;
+			return true;
+		}
+	}
+}
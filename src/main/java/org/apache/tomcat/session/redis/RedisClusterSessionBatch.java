@@ -0,0 +1,78 @@
+package org.apache.tomcat.session.redis;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pending changes of a session, recorded during a request and sent to the
+ * cluster in a single round trip when the request ends.
+ *
+ */
+class RedisClusterSessionBatch {
+
+	private final Map<String, byte[]> fields = new LinkedHashMap<String, byte[]>();
+	private final Set<String> removedFields = new HashSet<String>();
+	private boolean expire = false;
+	private boolean accessed = false;
+	private boolean changed = false;
+
+	void put(String field, byte[] value) {
+		removedFields.remove(field);
+		fields.put(field, value);
+	}
+
+	void putAll(Map<String, byte[]> map) {
+		removedFields.removeAll(map.keySet());
+		fields.putAll(map);
+	}
+
+	void remove(String field) {
+		fields.remove(field);
+		removedFields.add(field);
+	}
+
+	void expire() {
+		expire = true;
+	}
+
+	void access() {
+		accessed = true;
+	}
+
+	void change() {
+		changed = true;
+	}
+
+	boolean isEmpty() {
+		return fields.isEmpty() && removedFields.isEmpty() && !expire;
+	}
+
+	/**
+	 * @return true if the batch only refreshes the metadata and the time to live of the session
+	 */
+	boolean isTouchOnly() {
+		return !changed && removedFields.isEmpty() && fields.size() == 1 && fields.containsKey(RedisClusterSessionMetadata.FIELD);
+	}
+
+	Map<String, byte[]> getFields() {
+		return fields;
+	}
+
+	Set<String> getRemovedFields() {
+		return removedFields;
+	}
+
+	boolean isExpire() {
+		return expire;
+	}
+
+	boolean isAccessed() {
+		return accessed;
+	}
+
+	boolean isChanged() {
+		return changed;
+	}
+}
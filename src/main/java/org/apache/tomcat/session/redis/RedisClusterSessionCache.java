@@ -0,0 +1,99 @@
+package org.apache.tomcat.session.redis;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Node-local cache of the deserialized attributes of a session.
+ *
+ * The cache holds the state of the session at a given version of its hash. Any
+ * write on the session, from any node, increments that version: a cache
+ * which does not match the version read at the beginning of a request, or
+ * which sees another node's write interleaved with its own, is cleared.
+ *
+ */
+class RedisClusterSessionCache {
+
+	// the attribute is known to be absent from the session
+	private static final Object NULL = new Object();
+
+	private final Map<String, Object> values;
+	private Set<String> names = null;
+	private long version = -1;
+
+	RedisClusterSessionCache(final int maxSize) {
+		this.values = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	synchronized boolean contains(String name) {
+		return values.containsKey(name);
+	}
+
+	synchronized Object get(String name) {
+		Object value = values.get(name);
+		return value == NULL ? null : value;
+	}
+
+	synchronized void put(String name, Object value) {
+		values.put(name, value == null ? NULL : value);
+
+		if (names != null) {
+			if (value == null) {
+				names.remove(name);
+			} else {
+				names.add(name);
+			}
+		}
+	}
+
+	synchronized Set<String> getNames() {
+		return names == null ? null : new HashSet<String>(names);
+	}
+
+	synchronized void setNames(Set<String> names) {
+		this.names = new HashSet<String>(names);
+	}
+
+	/**
+	 * Checks the version read from the cluster, clearing the cache if the
+	 * session has been changed since it was filled.
+	 *
+	 * @return false if the cache has been cleared
+	 */
+	synchronized boolean validate(long version) {
+		if (this.version == version) return true;
+
+		clear();
+		this.version = version;
+		return false;
+	}
+
+	/**
+	 * Follows the version returned by a write of this node. Any gap means
+	 * another node has written in between.
+	 *
+	 * @return false if the cache has been cleared
+	 */
+	synchronized boolean written(long version) {
+		boolean consistent = this.version + 1 == version;
+		if (!consistent) {
+			clear();
+		}
+		this.version = version;
+		return consistent;
+	}
+
+	synchronized void clear() {
+		values.clear();
+		names = null;
+	}
+}
@@ -0,0 +1,35 @@
+package org.apache.tomcat.session.redis;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Compresses the serialized attribute values. A compressed value starts with
+ * the header byte of its codec, so the values written before compression was
+ * enabled, or by another codec, remain readable.
+ *
+ * Implementations are selected with the compressionCodecClassName attribute of
+ * the manager, and must provide a public no-argument constructor.
+ *
+ */
+public interface RedisClusterSessionCodec {
+
+	/**
+	 * @return the first byte of the values compressed by this codec, which
+	 * must never be the first byte of a serialized value (0x01 to 0x12, 0x72,
+	 * 0x7F and 0xAC are taken)
+	 */
+	public byte getHeader();
+
+	/**
+	 * @return the header byte followed by the compressed bytes, or null if
+	 * they would not be smaller than the data
+	 */
+	public byte[] compress(byte[] data) throws IOException;
+
+	/**
+	 * @param in the compressed bytes, after the header byte
+	 * @return the data, decompressed as it is read
+	 */
+	public InputStream decompress(InputStream in) throws IOException;
+}
@@ -0,0 +1,74 @@
+package org.apache.tomcat.session.redis;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.tomcat.session.redis.impl.DeflateCodecImpl;
+
+/**
+ * Compresses the serialized values from a size threshold, and decompresses
+ * the values starting with the header byte of the codec, or of Deflate.
+ * The other values are left to the serializer as they are.
+ *
+ */
+final class RedisClusterSessionCompressedSerializer implements RedisClusterSessionSerializer {
+
+	private final RedisClusterSessionSerializer serializer;
+	private final RedisClusterSessionCodec codec;
+	private final int threshold;
+
+	// the codecs of the values readable, by header byte
+	private final RedisClusterSessionCodec[] codecs = new RedisClusterSessionCodec[256];
+
+	RedisClusterSessionCompressedSerializer(RedisClusterSessionSerializer serializer, RedisClusterSessionCodec codec, int threshold) {
+		this.serializer = serializer;
+		this.codec = codec;
+		this.threshold = threshold;
+
+		// the values written with the default codec remain readable once another is set
+		codecs[DeflateCodecImpl.HEADER & 0xFF] = codec.getHeader() == DeflateCodecImpl.HEADER ? codec : new DeflateCodecImpl();
+		codecs[codec.getHeader() & 0xFF] = codec;
+	}
+
+	@Override
+	public void setClassLoader(ClassLoader classLoader) {
+		serializer.setClassLoader(classLoader);
+	}
+
+	@Override
+	public byte[] serialize(Object o) throws IOException {
+		byte[] data = serializer.serialize(o);
+		if (data == null || data.length < threshold) return data;
+
+		byte[] compressed = codec.compress(data);
+		return compressed == null ? data : compressed;
+	}
+
+	@Override
+	public Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+		RedisClusterSessionCodec decoder = data == null || data.length == 0 ? null : codecs[data[0] & 0xFF];
+		if (decoder == null) return serializer.deserialize(data);
+
+		try (InputStream in = decoder.decompress(new ByteArrayInputStream(data, 1, data.length - 1))) {
+			return serializer.deserialize(in);
+		}
+	}
+
+	@Override
+	public Object deserialize(InputStream in) throws IOException, ClassNotFoundException {
+		BufferedInputStream bis = new BufferedInputStream(in);
+		bis.mark(1);
+		int header = bis.read();
+		RedisClusterSessionCodec decoder = header < 0 ? null : codecs[header];
+		if (decoder == null) {
+			bis.reset();
+			return serializer.deserialize(bis);
+		}
+
+		try (InputStream decompressed = decoder.decompress(bis)) {
+			return serializer.deserialize(decompressed);
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package org.apache.tomcat.session.redis;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * 64-bit non-cryptographic hash of serialized values (MurmurHash3 mixing, 8
+ * bytes per step), used to tell whether a value differs from the one last
+ * persisted without keeping or re-serializing the latter.
+ *
+ */
+final class RedisClusterSessionFingerprint {
+
+	private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private RedisClusterSessionFingerprint() {
+	}
+
+	static long of(byte[] data) {
+		long h = 0x9368e53c2f6af274L ^ data.length;
+
+		int i = 0;
+		for (; i + 8 <= data.length; i += 8) {
+			h ^= mix((long) LONGS.get(data, i));
+			h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+		}
+
+		long tail = 0;
+		for (int shift = 0; i < data.length; i++, shift += 8) {
+			tail |= (data[i] & 0xFFL) << shift;
+		}
+		h ^= mix(tail);
+
+		// final avalanche
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long mix(long k) {
+		k *= C1;
+		k = Long.rotateLeft(k, 31);
+		return k * C2;
+	}
+}
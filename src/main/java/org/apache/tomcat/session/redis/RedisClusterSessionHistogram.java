@@ -0,0 +1,166 @@
+package org.apache.tomcat.session.redis;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of positive values, with log-linear buckets: 8 buckets
+ * per power of two, so any percentile is accurate within 12.5%. The buckets
+ * are striped by thread, so concurrent recordings rarely hit the same cache line.
+ *
+ */
+public final class RedisClusterSessionHistogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private static final int STRIPES = Math.min(8, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors())));
+
+	private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	public RedisClusterSessionHistogram() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new AtomicLongArray(BUCKETS);
+		}
+	}
+
+	public void record(long value) {
+		if (value < 0) value = 0;
+
+		stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)].incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * @return the highest value of a bucket
+	 */
+	static long upperBound(int index) {
+		if (index < SUB_BUCKETS) return index;
+
+		int shift = index / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	public void reset() {
+		for (AtomicLongArray stripe : stripes) {
+			for (int i = 0; i < BUCKETS; i++) {
+				stripe.set(i, 0);
+			}
+		}
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+
+	/**
+	 * @param scale divides the values reported, e.g. 1000 for nanoseconds reported in microseconds
+	 */
+	public Snapshot snapshot(double scale) {
+		long[] buckets = new long[BUCKETS];
+		long total = 0;
+		for (AtomicLongArray stripe : stripes) {
+			for (int i = 0; i < BUCKETS; i++) {
+				long n = stripe.get(i);
+				buckets[i] += n;
+				total += n;
+			}
+		}
+
+		long highest = max.get();
+		return new Snapshot(total,
+				total == 0 ? 0 : sum.sum() / scale / total,
+				percentile(buckets, total, 0.50, highest) / scale,
+				percentile(buckets, total, 0.90, highest) / scale,
+				percentile(buckets, total, 0.99, highest) / scale,
+				percentile(buckets, total, 0.999, highest) / scale,
+				highest / scale);
+	}
+
+	private static long percentile(long[] buckets, long total, double percentile, long highest) {
+		if (total == 0) return 0;
+
+		long rank = (long) Math.ceil(percentile * total);
+		long seen = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), highest);
+			}
+		}
+		return highest;
+	}
+
+	/**
+	 * Values of a histogram at a point in time.
+	 */
+	public static final class Snapshot {
+
+		private final long count;
+		private final double mean;
+		private final double p50;
+		private final double p90;
+		private final double p99;
+		private final double p999;
+		private final double max;
+
+		@ConstructorProperties({"count", "mean", "p50", "p90", "p99", "p999", "max"})
+		public Snapshot(long count, double mean, double p50, double p90, double p99, double p999, double max) {
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.p999 = p999;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public double getP50() {
+			return p50;
+		}
+
+		public double getP90() {
+			return p90;
+		}
+
+		public double getP99() {
+			return p99;
+		}
+
+		public double getP999() {
+			return p999;
+		}
+
+		public double getMax() {
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f p999=%.1f max=%.1f", count, mean, p50, p90, p99, p999, max);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package org.apache.tomcat.session.redis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Ids of the sessions most recently accessed on a node when it stopped, kept
+ * until it starts again: in a local file, one id and access time per line,
+ * or in a hash of the cluster, field id and value access time.
+ *
+ */
+final class RedisClusterSessionHotSet {
+
+	private final File file;
+	private final RedisClusterSessionOperator operator;
+	private final String key;
+	private final int expire;
+
+	/**
+	 * Kept in a local file.
+	 */
+	RedisClusterSessionHotSet(File file) {
+		this.file = file;
+		this.operator = null;
+		this.key = null;
+		this.expire = 0;
+	}
+
+	/**
+	 * Kept in a hash of the cluster.
+	 *
+	 * @param expire time to live of the hash in seconds, 0 for none
+	 */
+	RedisClusterSessionHotSet(RedisClusterSessionOperator operator, String key, int expire) {
+		this.file = null;
+		this.operator = operator;
+		this.key = key;
+		this.expire = expire;
+	}
+
+	/**
+	 * Replaces the ids kept.
+	 *
+	 * @param accessTimes the last access time of each session, by id
+	 */
+	void save(Map<String, Long> accessTimes) throws IOException {
+		if (file != null) {
+			List<String> lines = new ArrayList<String>(accessTimes.size());
+			for (Entry<String, Long> entry : accessTimes.entrySet()) {
+				lines.add(entry.getKey() + " " + entry.getValue());
+			}
+
+			// never read half written
+			File written = new File(file.getPath() + ".tmp");
+			Files.write(written.toPath(), lines, StandardCharsets.UTF_8);
+			Files.move(written.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return;
+		}
+
+		operator.del(key);
+		if (accessTimes.isEmpty()) return;
+
+		Map<String, byte[]> fields = new LinkedHashMap<String, byte[]>(accessTimes.size() * 2);
+		for (Entry<String, Long> entry : accessTimes.entrySet()) {
+			fields.put(entry.getKey(), Long.toString(entry.getValue()).getBytes(StandardCharsets.US_ASCII));
+		}
+		operator.flush(key, fields, Collections.emptySet(), null, expire);
+	}
+
+	/**
+	 * Reads the ids kept, and forgets them.
+	 *
+	 * @return the ids, the most recently accessed first
+	 */
+	List<String> take() throws IOException {
+		Map<String, Long> accessTimes = new LinkedHashMap<String, Long>();
+
+		if (file != null) {
+			if (!file.exists()) return Collections.emptyList();
+
+			for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				int separator = line.indexOf(' ');
+				if (separator > 0) {
+					accessTimes.put(line.substring(0, separator), parse(line.substring(separator + 1)));
+				}
+			}
+			Files.delete(file.toPath());
+		} else {
+			Map<String, byte[]> fields = operator.getMap(key);
+			if (fields == null || fields.isEmpty()) return Collections.emptyList();
+
+			for (Entry<String, byte[]> field : fields.entrySet()) {
+				accessTimes.put(field.getKey(), parse(new String(field.getValue(), StandardCharsets.US_ASCII)));
+			}
+			operator.del(key);
+		}
+
+		List<String> ids = new ArrayList<String>(accessTimes.keySet());
+		ids.sort((a, b) -> Long.compare(accessTimes.get(b), accessTimes.get(a)));
+		return ids;
+	}
+
+	private static long parse(String accessTime) {
+		try {
+			return Long.parseLong(accessTime.trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
@@ -1,10 +1,32 @@
 package org.apache.tomcat.session.redis;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import javax.management.ObjectName;
+import javax.servlet.ServletContext;
 
 import org.apache.catalina.Context;
 import org.apache.catalina.Lifecycle;
@@ -15,8 +37,12 @@ import org.apache.catalina.Session;
 import org.apache.catalina.session.ManagerBase;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.modeler.Registry;
+import org.apache.tomcat.session.redis.impl.DeflateCodecImpl;
+import org.apache.tomcat.session.redis.impl.JavaSerializerImpl;
 import org.apache.tomcat.session.redis.impl.JedisClusterImpl;
 import org.apache.tomcat.session.redis.impl.LettuceClusterImpl;
+import org.apache.tomcat.session.redis.impl.TypedSerializerImpl;
 
 /**
  * 
@@ -28,15 +54,93 @@ public class RedisClusterSessionManager extends ManagerBase implements Lifecycle
 	private static final String NAME = "RedisClusterSessionManager";
 
 	private final static String prefix_key = "redis_cluster_tomcat_session_";
+	// ids of the sessions created, for the negative caches of the other nodes
+	private final static String created_channel = "redis_cluster_tomcat_session_created";
 	private final static Log log = LogFactory.getLog(RedisClusterSessionManager.class);
 
 	// configuration
 	private String nodes = null;
 	private String implementation = null;
 	private int timeout = 0;
+	private int connectTimeout = 0;
+	private int commandTimeout = 0;
+	private int maxRedirections = 5;
+	private int poolMaxTotal = 200;
+	private int poolMaxIdle = 20;
+	private int poolMinIdle = 5;
+	private long poolMaxWait = 0;
+	private int connections = 1;
+	private String connectionStriping = "thread";
+	private boolean bulkConnection = false;
+	private boolean readFromReplicas = false;
+	private long replicaReadDelay = 1000;
+	private int waitReplicas = 0;
+	private long waitTimeout = 100;
+	private long pipelineInterval = 0;
+	private int pipelineMaxCommands = 64;
+	private int largeAttributeThreshold = 0;
+	private int largeAttributeChunkSize = 256 * 1024;
+	private boolean largeAttributeCompression = false;
+	private int compressionThreshold = 0;
+	private String compressionCodecClassName = DeflateCodecImpl.class.getName();
+	private boolean writeBehind = false;
+	private boolean persistMutations = false;
+	private boolean base64Encoding = false;
+	private int nearCacheSize = 0;
+	private String serializerClassName = TypedSerializerImpl.class.getName();
+	private double touchThreshold = 0;
+	private int touchBatchInterval = 0;
+	private boolean asyncWrites = false;
+	private int maxAsyncWrites = 1024;
+	private boolean metricsEnabled = false;
+	private boolean sticky = false;
+	private boolean versioning = false;
+	private String conflictPolicy = "overwrite";
+	private int maxResidentSessions = 0;
+	private long maxResidentBytes = 0;
+	private long negativeCacheTtl = 0;
+	private int negativeCacheSize = 10000;
+	private String metricsRecorderClassName = null;
+	private boolean sharedClient = true;
+	private String keyPrefix = null;
+	private boolean keyPrefixPerContext = false;
+	private String keyScheme = "prefix";
+	private int hotSetSize = 0;
+	private String hotSetPathname = null;
+	private int prefetchThreads = 4;
+	private int prefetchBatchSize = 100;
+	private long prefetchTimeout = 0;
 
 	private RedisClusterSessionSerializer serializer;
 	private RedisClusterSessionOperator redisClusterSessionOperator;
+	private RedisClusterSessionToucher toucher;
+	private RedisClusterSessionMetrics metrics;
+	private ObjectName metricsName;
+	private RedisClusterSessionNegativeCache negativeCache;
+	private String sessionKeyPrefix = prefix_key;
+	private boolean hashTagKeys = false;
+
+	// keys of the sessions expired by the sweep running on the thread, deleted together
+	private final ThreadLocal<List<String>> sweptKeys = new ThreadLocal<List<String>>();
+
+	// bounds the writes in flight in asynchronous mode
+	private Semaphore asyncWritePermits;
+	private final LongAdder asyncWriteFailures = new LongAdder();
+	private final LongAdder versionConflicts = new LongAdder();
+
+	// clock of the sessions held on this node, swept when their residency is bounded
+	private final Queue<RedisClusterSession> residents = new ConcurrentLinkedQueue<RedisClusterSession>();
+	private final AtomicLong residentBytes = new AtomicLong();
+	private final ReentrantLock evicting = new ReentrantLock();
+	private final LongAdder evictions = new LongAdder();
+
+	// reads the sessions recorded at the last stop, in the background of the start
+	private ThreadPoolExecutor prefetcher;
+	private final LongAdder prefetchedSessions = new LongAdder();
+	private final Object maxActiveLock = new Object();
+
+	// sessions used by the request running on the current thread, in write-behind, persist-mutations, sticky or metrics mode
+	private final ThreadLocal<Set<RedisClusterSession>> requestSessions = new ThreadLocal<Set<RedisClusterSession>>();
 
 	public String getNodes() {
 		return nodes;
@@ -50,6 +154,9 @@ public class RedisClusterSessionManager extends ManagerBase implements Lifecycle
 		return implementation;
 	}
 
+	/**
+	 * @param implementation "jedis", "lettuce", or the class name of a {@link RedisClusterSessionOperator}
+	 */
 	public void setImplementation(String implementation) {
 		this.implementation = implementation;
 	}
@@ -62,6 +169,673 @@ public class RedisClusterSessionManager extends ManagerBase implements Lifecycle
 		this.timeout = timeout;
 	}
 
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Time in milliseconds to wait for a connection to a node to open, 0 for the default of the client.
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getCommandTimeout() {
+		return commandTimeout;
+	}
+
+	/**
+	 * Time in milliseconds to wait for the reply to a command, 0 for the default of the client.
+	 */
+	public void setCommandTimeout(int commandTimeout) {
+		this.commandTimeout = commandTimeout;
+	}
+
+	public int getMaxRedirections() {
+		return maxRedirections;
+	}
+
+	/**
+	 * Number of MOVED/ASK redirections followed before a command fails.
+	 */
+	public void setMaxRedirections(int maxRedirections) {
+		this.maxRedirections = maxRedirections;
+	}
+
+	public int getPoolMaxTotal() {
+		return poolMaxTotal;
+	}
+
+	/**
+	 * Jedis: maximum number of connections to each node.
+	 */
+	public void setPoolMaxTotal(int poolMaxTotal) {
+		this.poolMaxTotal = poolMaxTotal;
+	}
+
+	public int getPoolMaxIdle() {
+		return poolMaxIdle;
+	}
+
+	/**
+	 * Jedis: maximum number of connections to each node kept open while unused.
+	 */
+	public void setPoolMaxIdle(int poolMaxIdle) {
+		this.poolMaxIdle = poolMaxIdle;
+	}
+
+	public int getPoolMinIdle() {
+		return poolMinIdle;
+	}
+
+	/**
+	 * Jedis: minimum number of connections to each node kept open while unused.
+	 */
+	public void setPoolMinIdle(int poolMinIdle) {
+		this.poolMinIdle = poolMinIdle;
+	}
+
+	public long getPoolMaxWait() {
+		return poolMaxWait;
+	}
+
+	/**
+	 * Jedis: time in milliseconds to wait for a connection when all are in
+	 * use, 0 for the timeout (in seconds) if set, else 2 seconds.
+	 */
+	public void setPoolMaxWait(long poolMaxWait) {
+		this.poolMaxWait = poolMaxWait;
+	}
+
+	public int getConnections() {
+		return connections;
+	}
+
+	/**
+	 * Lettuce: number of connections to the cluster the commands are spread over.
+	 */
+	public void setConnections(int connections) {
+		this.connections = connections;
+	}
+
+	public String getConnectionStriping() {
+		return connectionStriping;
+	}
+
+	/**
+	 * Lettuce: "thread" to give each request thread the same connection, or
+	 * "slot" to send the commands on a same slot over the same connection.
+	 */
+	public void setConnectionStriping(String connectionStriping) {
+		this.connectionStriping = connectionStriping;
+	}
+
+	public boolean isBulkConnection() {
+		return bulkConnection;
+	}
+
+	/**
+	 * Lettuce: with bulkConnection="true", the batches of commands on many
+	 * sessions (touchBatchInterval) are sent over a connection of their own.
+	 */
+	public void setBulkConnection(boolean bulkConnection) {
+		this.bulkConnection = bulkConnection;
+	}
+
+	public boolean isReadFromReplicas() {
+		return readFromReplicas;
+	}
+
+	/**
+	 * With readFromReplicas="true", the attributes of a session neither changed
+	 * by this node nor accessed for replicaReadDelay are read from a replica.
+	 * The sessions are always loaded from the masters.
+	 */
+	public void setReadFromReplicas(boolean readFromReplicas) {
+		this.readFromReplicas = readFromReplicas;
+	}
+
+	public long getReplicaReadDelay() {
+		return replicaReadDelay;
+	}
+
+	/**
+	 * Time in milliseconds after the last change or access of a session
+	 * beyond which its replicas are considered up to date.
+	 */
+	public void setReplicaReadDelay(long replicaReadDelay) {
+		this.replicaReadDelay = replicaReadDelay;
+	}
+
+	public int getWaitReplicas() {
+		return waitReplicas;
+	}
+
+	/**
+	 * Number of replicas the changes flushed at the end of a request have to
+	 * reach (WAIT) before the request completes, 0 not to wait.
+	 */
+	public void setWaitReplicas(int waitReplicas) {
+		this.waitReplicas = waitReplicas;
+	}
+
+	public long getWaitTimeout() {
+		return waitTimeout;
+	}
+
+	/**
+	 * Time in milliseconds after which a request waiting for the replicas completes anyway.
+	 */
+	public void setWaitTimeout(long waitTimeout) {
+		this.waitTimeout = waitTimeout;
+	}
+
+	public long getPipelineInterval() {
+		return pipelineInterval;
+	}
+
+	/**
+	 * Time in microseconds the single commands of all the threads are held to
+	 * be sent together, in one write per cluster node, 0 to send each at once.
+	 * Lettuce only: with Jedis, each thread waits for the reply of its command
+	 * on a pooled connection, so that there is nothing to send together.
+	 */
+	public void setPipelineInterval(long pipelineInterval) {
+		this.pipelineInterval = pipelineInterval;
+	}
+
+	public int getPipelineMaxCommands() {
+		return pipelineMaxCommands;
+	}
+
+	/**
+	 * Number of commands held after which they are sent without waiting for
+	 * the end of the pipelineInterval.
+	 */
+	public void setPipelineMaxCommands(int pipelineMaxCommands) {
+		this.pipelineMaxCommands = pipelineMaxCommands;
+	}
+
+	public int getLargeAttributeThreshold() {
+		return largeAttributeThreshold;
+	}
+
+	/**
+	 * Size in bytes of a serialized attribute value from which it is stored in
+	 * a key of its own, read only when the attribute is accessed, 0 to keep
+	 * every value in the session hash.
+	 */
+	public void setLargeAttributeThreshold(int largeAttributeThreshold) {
+		this.largeAttributeThreshold = largeAttributeThreshold;
+	}
+
+	public int getLargeAttributeChunkSize() {
+		return largeAttributeChunkSize;
+	}
+
+	/**
+	 * Size in bytes of the chunks a large attribute value is split in, each
+	 * written and read as a field of its own.
+	 */
+	public void setLargeAttributeChunkSize(int largeAttributeChunkSize) {
+		this.largeAttributeChunkSize = largeAttributeChunkSize;
+	}
+
+	public boolean isLargeAttributeCompression() {
+		return largeAttributeCompression;
+	}
+
+	/**
+	 * With largeAttributeCompression="true", the large attribute values are deflated.
+	 */
+	public void setLargeAttributeCompression(boolean largeAttributeCompression) {
+		this.largeAttributeCompression = largeAttributeCompression;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Size in bytes of a serialized attribute value from which it is
+	 * compressed, 0 not to compress. The nodes reading the values must have
+	 * it set too, whatever the threshold.
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public String getCompressionCodecClassName() {
+		return compressionCodecClassName;
+	}
+
+	/**
+	 * @param compressionCodecClassName the {@link RedisClusterSessionCodec} implementation
+	 */
+	public void setCompressionCodecClassName(String compressionCodecClassName) {
+		this.compressionCodecClassName = compressionCodecClassName;
+	}
+
+	public boolean isWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * When enabled, the changes made to a session during a request are sent in
+	 * a single round trip at the end of the request. Requires the
+	 * {@link RedisClusterSessionValve} to be installed on the context.
+	 */
+	public void setWriteBehind(boolean writeBehind) {
+		this.writeBehind = writeBehind;
+	}
+
+	public boolean isPersistMutations() {
+		return persistMutations;
+	}
+
+	/**
+	 * When enabled, the mutable attributes read during a request are serialized
+	 * again when it ends, and written if they have been changed in place without
+	 * a call to setAttribute(). Requires the {@link RedisClusterSessionValve} to
+	 * be installed on the context.
+	 */
+	public void setPersistMutations(boolean persistMutations) {
+		this.persistMutations = persistMutations;
+	}
+
+	public boolean isBase64Encoding() {
+		return base64Encoding;
+	}
+
+	/**
+	 * When enabled, values are written Base64 encoded like the previous releases
+	 * did, so nodes not yet upgraded can still read them during a rolling upgrade.
+	 * Both encodings are always readable. Implies plain Java serialization.
+	 */
+	public void setBase64Encoding(boolean base64Encoding) {
+		this.base64Encoding = base64Encoding;
+	}
+
+	public int getNearCacheSize() {
+		return nearCacheSize;
+	}
+
+	/**
+	 * Maximum number of deserialized attributes kept on this node for each
+	 * session, 0 to disable the near cache. The cache is checked against the
+	 * version of the session once per request.
+	 */
+	public void setNearCacheSize(int nearCacheSize) {
+		this.nearCacheSize = nearCacheSize;
+	}
+
+	public String getSerializerClassName() {
+		return serializerClassName;
+	}
+
+	/**
+	 * @param serializerClassName the {@link RedisClusterSessionSerializer} implementation
+	 */
+	public void setSerializerClassName(String serializerClassName) {
+		this.serializerClassName = serializerClassName;
+	}
+
+	public double getTouchThreshold() {
+		return touchThreshold;
+	}
+
+	/**
+	 * Fraction of the max inactive interval of a session during which its
+	 * access time and time to live are not refreshed again, 0 to refresh them on
+	 * every request. The time to live is extended by as much, so a session
+	 * never expires from the cluster before its inactivity timeout.
+	 */
+	public void setTouchThreshold(double touchThreshold) {
+		this.touchThreshold = touchThreshold;
+	}
+
+	public int getTouchBatchInterval() {
+		return touchBatchInterval;
+	}
+
+	/**
+	 * Delay in milliseconds between two batches of access time updates, 0 to
+	 * send each of them right away. The updates of all sessions are coalesced
+	 * and pipelined per node.
+	 */
+	public void setTouchBatchInterval(int touchBatchInterval) {
+		this.touchBatchInterval = touchBatchInterval;
+	}
+
+	/**
+	 * @return the time in milliseconds during which the access of a session is not refreshed again
+	 */
+	protected long getTouchWindow(int maxInactiveInterval) {
+		if (touchThreshold <= 0 || maxInactiveInterval <= 0) return 0;
+
+		return (long) (TimeUnit.SECONDS.toMillis(maxInactiveInterval) * Math.min(touchThreshold, 1));
+	}
+
+	/**
+	 * @return the scheduler of batched access time updates, or null if they are sent right away
+	 */
+	protected RedisClusterSessionToucher getToucher() {
+		return toucher;
+	}
+
+	public boolean isAsyncWrites() {
+		return asyncWrites;
+	}
+
+	/**
+	 * When enabled, the writes whose reply is not needed (attribute changes and
+	 * access time updates not versioned for the near cache) are sent without
+	 * waiting for it. Their failures are logged and counted.
+	 */
+	public void setAsyncWrites(boolean asyncWrites) {
+		this.asyncWrites = asyncWrites;
+	}
+
+	public int getMaxAsyncWrites() {
+		return maxAsyncWrites;
+	}
+
+	/**
+	 * Maximum number of asynchronous writes in flight, beyond which the request
+	 * threads wait for the oldest ones to complete.
+	 */
+	public void setMaxAsyncWrites(int maxAsyncWrites) {
+		this.maxAsyncWrites = maxAsyncWrites;
+	}
+
+	/**
+	 * @return the number of asynchronous writes which have failed
+	 */
+	public long getAsyncWriteFailures() {
+		return asyncWriteFailures.sum();
+	}
+
+	public boolean isSticky() {
+		return sticky;
+	}
+
+	/**
+	 * When enabled, for load balancers routing each session to the node in its
+	 * jvmRoute suffix: the attributes are read from the local copy of the
+	 * session, the cluster is written for durability only. The version of the
+	 * session is read once per request, and the local copy reloaded when
+	 * another node has changed it (failover, failback). Replaces the near
+	 * cache.
+	 */
+	public void setSticky(boolean sticky) {
+		this.sticky = sticky;
+	}
+
+	public boolean isVersioning() {
+		return versioning;
+	}
+
+	/**
+	 * When enabled, every write of attributes increments a "session:version"
+	 * field of the session, and is applied by a server-side script only if
+	 * the session is still at the version this node has read at the beginning
+	 * of the request or written last. Implied by the near cache and the sticky
+	 * mode.
+	 */
+	public void setVersioning(boolean versioning) {
+		this.versioning = versioning;
+	}
+
+	public String getConflictPolicy() {
+		return conflictPolicy;
+	}
+
+	/**
+	 * @param conflictPolicy what to do with the changes of a session which has
+	 * been written by another node since this node read it: "overwrite" applies
+	 * them over the current version, "reject" discards them
+	 */
+	public void setConflictPolicy(String conflictPolicy) {
+		this.conflictPolicy = conflictPolicy;
+	}
+
+	protected boolean isRejectConflicts() {
+		return "reject".equalsIgnoreCase(conflictPolicy);
+	}
+
+	/**
+	 * @return the number of versioned writes which have found the session changed by another node
+	 */
+	public long getVersionConflicts() {
+		return versionConflicts.sum();
+	}
+
+	protected void countVersionConflict() {
+		versionConflicts.increment();
+	}
+
+	public int getMaxResidentSessions() {
+		return maxResidentSessions;
+	}
+
+	/**
+	 * Maximum number of sessions held on this node, beyond which the sessions
+	 * least recently used are dropped from the memory of the node, without any
+	 * listener being notified: they stay in the cluster, and are loaded again on
+	 * their next use. 0 for no limit.
+	 */
+	public void setMaxResidentSessions(int maxResidentSessions) {
+		this.maxResidentSessions = maxResidentSessions;
+	}
+
+	public long getMaxResidentBytes() {
+		return maxResidentBytes;
+	}
+
+	/**
+	 * Maximum size of the sessions held on this node, estimated from the size
+	 * of their serialized attributes, beyond which the sessions least recently
+	 * used are dropped from the memory of the node like with
+	 * maxResidentSessions. 0 for no limit.
+	 */
+	public void setMaxResidentBytes(long maxResidentBytes) {
+		this.maxResidentBytes = maxResidentBytes;
+	}
+
+	/**
+	 * @return the estimated size of the sessions held on this node, if maxResidentBytes is set
+	 */
+	public long getResidentBytes() {
+		return residentBytes.get();
+	}
+
+	/**
+	 * @return the number of sessions dropped from the memory of this node to bound their residency
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public long getNegativeCacheTtl() {
+		return negativeCacheTtl;
+	}
+
+	/**
+	 * Time in milliseconds during which a session id found absent from the
+	 * cluster is answered as absent by this node without asking the cluster
+	 * again. A session created with that id on any node removes it, as long
+	 * as every node sets it. 0 to always ask the cluster.
+	 */
+	public void setNegativeCacheTtl(long negativeCacheTtl) {
+		this.negativeCacheTtl = negativeCacheTtl;
+	}
+
+	public int getNegativeCacheSize() {
+		return negativeCacheSize;
+	}
+
+	/**
+	 * Maximum number of absent session ids remembered by the negative cache,
+	 * the oldest being forgotten first.
+	 */
+	public void setNegativeCacheSize(int negativeCacheSize) {
+		this.negativeCacheSize = negativeCacheSize;
+	}
+
+	public boolean isSharedClient() {
+		return sharedClient;
+	}
+
+	/**
+	 * With sharedClient="true" (the default), the managers of all the contexts
+	 * of the JVM configured with the same nodes and client settings share a
+	 * single client, its connections and threads, released with the last of them.
+	 */
+	public void setSharedClient(boolean sharedClient) {
+		this.sharedClient = sharedClient;
+	}
+
+	public String getKeyPrefix() {
+		return keyPrefix;
+	}
+
+	/**
+	 * Prefix of the keys of the sessions in the cluster, isolating the sessions
+	 * of a context from the other contexts. By default, the prefix of the
+	 * previous releases, shared by all the contexts.
+	 */
+	public void setKeyPrefix(String keyPrefix) {
+		this.keyPrefix = keyPrefix;
+	}
+
+	public boolean isKeyPrefixPerContext() {
+		return keyPrefixPerContext;
+	}
+
+	/**
+	 * When enabled and no keyPrefix is set, the prefix is built from the names
+	 * of the host and of the context, the same on every Tomcat node. The
+	 * sessions stored under the default prefix are then no longer found.
+	 */
+	public void setKeyPrefixPerContext(boolean keyPrefixPerContext) {
+		this.keyPrefixPerContext = keyPrefixPerContext;
+	}
+
+	public String getKeyScheme() {
+		return keyScheme;
+	}
+
+	/**
+	 * "prefix" (the default) for the keys of the previous releases, the session
+	 * id after the prefix, or "hashTag" for the id in a hash tag ({id}), so
+	 * all the keys of a session hash to the same slot and can be written
+	 * together. The sessions stored with the other scheme are not found.
+	 */
+	public void setKeyScheme(String keyScheme) {
+		this.keyScheme = keyScheme;
+	}
+
+	public int getHotSetSize() {
+		return hotSetSize;
+	}
+
+	/**
+	 * Number of the sessions most recently accessed on this node whose ids are
+	 * recorded when it stops, to be read from the cluster in the background
+	 * when it starts again. 0 not to record them.
+	 */
+	public void setHotSetSize(int hotSetSize) {
+		this.hotSetSize = hotSetSize;
+	}
+
+	public String getHotSetPathname() {
+		return hotSetPathname;
+	}
+
+	/**
+	 * File the ids are recorded in, relative to the work directory of the
+	 * context if not absolute. If not set, they are recorded in a hash of the
+	 * cluster named after the jvmRoute of this node, or else its host name.
+	 */
+	public void setHotSetPathname(String hotSetPathname) {
+		this.hotSetPathname = hotSetPathname;
+	}
+
+	public int getPrefetchThreads() {
+		return prefetchThreads;
+	}
+
+	/**
+	 * Number of threads reading the recorded sessions at start.
+	 */
+	public void setPrefetchThreads(int prefetchThreads) {
+		this.prefetchThreads = prefetchThreads;
+	}
+
+	public int getPrefetchBatchSize() {
+		return prefetchBatchSize;
+	}
+
+	/**
+	 * Number of sessions of a same node read in one pipeline at start.
+	 */
+	public void setPrefetchBatchSize(int prefetchBatchSize) {
+		this.prefetchBatchSize = prefetchBatchSize;
+	}
+
+	public long getPrefetchTimeout() {
+		return prefetchTimeout;
+	}
+
+	/**
+	 * Time in milliseconds the start waits for the recorded sessions to be
+	 * read, 0 not to wait: the requests arriving meanwhile read the sessions
+	 * not yet prefetched themselves.
+	 */
+	public void setPrefetchTimeout(long prefetchTimeout) {
+		this.prefetchTimeout = prefetchTimeout;
+	}
+
+	/**
+	 * @return the number of sessions read from the cluster at start
+	 */
+	public long getPrefetchedSessions() {
+		return prefetchedSessions.sum();
+	}
+
+	public boolean isMetricsEnabled() {
+		return metricsEnabled;
+	}
+
+	/**
+	 * When enabled, the latency of the commands, the commands per request, the
+	 * serialized sizes, the deserialization time, the sessions found locally
+	 * and the failures by node are recorded, and exposed through JMX as
+	 * type=RedisClusterSessionMetrics. The commands are counted per request
+	 * when the {@link RedisClusterSessionValve} is installed on the context.
+	 */
+	public void setMetricsEnabled(boolean metricsEnabled) {
+		this.metricsEnabled = metricsEnabled;
+	}
+
+	public String getMetricsRecorderClassName() {
+		return metricsRecorderClassName;
+	}
+
+	/**
+	 * @param metricsRecorderClassName a {@link RedisClusterSessionMetricsRecorder} also receiving the metrics, e.g. to feed a metrics registry
+	 */
+	public void setMetricsRecorderClassName(String metricsRecorderClassName) {
+		this.metricsRecorderClassName = metricsRecorderClassName;
+	}
+
+	/**
+	 * @return the metrics of this manager, or null if they are not enabled
+	 */
+	public RedisClusterSessionMetrics getMetrics() {
+		return metrics;
+	}
+
 	public RedisClusterSessionSerializer getSerializer() {
 		return serializer;
 	}
@@ -71,12 +845,152 @@ public class RedisClusterSessionManager extends ManagerBase implements Lifecycle
 		return NAME;
 	}
 
+	/**
+	 * Reads in the background the sessions recorded by {@link #unload()} at the
+	 * last stop, grouped by the node owning them, one pipeline per batch.
+	 */
 	@Override
 	public void load() throws ClassNotFoundException, IOException {
+		RedisClusterSessionHotSet hotSet = buildHotSet();
+		if (hotSet == null) return;
+
+		List<String> ids = hotSet.take();
+		if (ids.isEmpty()) return;
+
+		// the sessions of a node are read together, the most recently accessed first
+		Map<String, List<String>> byNode = new LinkedHashMap<String, List<String>>();
+		for (String id : ids) {
+			String address = redisClusterSessionOperator.getNodeAddress(buildSessionKey(id));
+			byNode.computeIfAbsent(String.valueOf(address), node -> new ArrayList<String>()).add(id);
+		}
+
+		int threads = Math.max(1, prefetchThreads);
+		prefetcher = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+			Thread thread = new Thread(runnable, "RedisClusterSessionPrefetch");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		int batchSize = Math.max(1, prefetchBatchSize);
+		for (List<String> nodeIds : byNode.values()) {
+			for (int from = 0; from < nodeIds.size(); from += batchSize) {
+				List<String> batch = nodeIds.subList(from, Math.min(nodeIds.size(), from + batchSize));
+				prefetcher.execute(() -> prefetch(batch));
+			}
+		}
+		prefetcher.shutdown();
+
+		if (prefetchTimeout > 0) {
+			try {
+				if (!prefetcher.awaitTermination(prefetchTimeout, TimeUnit.MILLISECONDS)) {
+					log.warn("Sessions still prefetched at start");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void prefetch(List<String> ids) {
+		try {
+			Map<String, String> keys = new LinkedHashMap<String, String>();
+			for (String id : ids) {
+				// a request may have found it already
+				if (!sessions.containsKey(id)) {
+					keys.put(buildSessionKey(id), id);
+				}
+			}
+			if (keys.isEmpty()) return;
+
+			Map<String, Map<String, byte[]>> maps = redisClusterSessionOperator.getMaps(keys.keySet());
+			for (Map.Entry<String, String> key : keys.entrySet()) {
+				Map<String, byte[]> attrs = maps.get(key.getKey());
+				if (attrs == null || attrs.isEmpty() || sessions.containsKey(key.getValue())) continue;
+
+				RedisClusterSession session = createEmptySession();
+				if (!session.load(attrs)) continue;
+
+				// a request may have loaded it meanwhile, its copy is kept
+				if (!session.prefetched(key.getValue())) continue;
+				session.activate();
+				prefetchedSessions.increment();
+			}
+		} catch (Exception e) {
+			log.warn("Cannot prefetch sessions", e);
+		}
 	}
 
+	/**
+	 * Lets the pending writes complete, then records the ids of the sessions
+	 * most recently accessed on this node for {@link #load()}.
+	 */
 	@Override
 	public void unload() throws IOException {
+		if (toucher != null) {
+			toucher.shutdown();
+			toucher = null;
+		}
+
+		try {
+			// let the writes in flight complete
+			int permits = Math.max(1, maxAsyncWrites);
+			if (asyncWritePermits.tryAcquire(permits, 10, TimeUnit.SECONDS)) {
+				asyncWritePermits.release(permits);
+			} else {
+				log.warn("Asynchronous writes still in flight at stop");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		RedisClusterSessionHotSet hotSet = buildHotSet();
+		if (hotSet == null) return;
+
+		List<RedisClusterSession> hot = new ArrayList<RedisClusterSession>();
+		for (Session session : sessions.values()) {
+			hot.add((RedisClusterSession) session);
+		}
+		hot.sort((a, b) -> Long.compare(b.getThisAccessedTimeInternal(), a.getThisAccessedTimeInternal()));
+
+		Map<String, Long> accessTimes = new LinkedHashMap<String, Long>();
+		for (RedisClusterSession session : hot) {
+			if (accessTimes.size() >= hotSetSize) break;
+			// not isValid(), which would expire the session
+			if (session.isValidInternal()) {
+				accessTimes.put(session.getIdInternal(), session.getThisAccessedTimeInternal());
+			}
+		}
+		hotSet.save(accessTimes);
+	}
+
+	/**
+	 * @return where the ids of the hot sessions are recorded, or null if they are not
+	 */
+	protected RedisClusterSessionHotSet buildHotSet() {
+		if (hotSetSize <= 0) return null;
+
+		if (hotSetPathname != null) {
+			File file = new File(hotSetPathname);
+			if (!file.isAbsolute()) {
+				File workDir = (File) getContextInternal().getServletContext().getAttribute(ServletContext.TEMPDIR);
+				file = new File(workDir, hotSetPathname);
+			}
+			return new RedisClusterSessionHotSet(file);
+		}
+
+		String node = getJvmRoute();
+		if (node == null) {
+			try {
+				node = InetAddress.getLocalHost().getHostName();
+			} catch (IOException e) {
+				node = "localhost";
+			}
+		}
+		// the key prefix may be shared by the contexts
+		Context context = getContextInternal();
+		String host = context.getParent() == null ? "" : context.getParent().getName();
+		return new RedisClusterSessionHotSet(redisClusterSessionOperator, sessionKeyPrefix + "hotset:" + node + ":" + host + context.getPath(),
+				Math.max(0, getContextInternal().getSessionTimeout() * 60));
 	}
 
 	@Override
@@ -91,6 +1005,14 @@ public class RedisClusterSessionManager extends ManagerBase implements Lifecycle
 		if (sessionId == null) {
 			sessionId = generateSessionId();
 		}
+		if (negativeCache != null) {
+			// an id given by the client may have been found absent by the other nodes, and
+			// any new session may be asked to them before it is written (write-behind, asynchronous writes)
+			negativeCache.created(sessionId);
+			// not waited for by the request
+			String id = sessionId;
+			writeAsync(async -> async.publish(created_channel, id));
+		}
 
 		session.setId(sessionId);
 
@@ -122,24 +1044,59 @@ public class RedisClusterSessionManager extends ManagerBase implements Lifecycle
 	public Session findSession(String sessionId) throws IOException {
 		RedisClusterSession session = (RedisClusterSession)super.findSession(sessionId);
 
+		if (session != null && sticky && firstFound(session) && !session.refresh()) {
+			// expired or invalidated by another node
+			unregister(session);
+			session = null;
+			if (metrics != null) {
+				metrics.recordFindSession("miss");
+			}
+			return null;
+		}
+
+		if (session != null && metrics != null) {
+			metrics.recordFindSession("local");
+		}
+
         if (session == null && sessionId != null) {
-			Map<String, Object> attrs = getMap(sessionId);
+			if (negativeCache != null && negativeCache.contains(sessionId)) {
+				if (metrics != null) {
+					metrics.recordFindSession("miss");
+				}
+				return null;
+			}
 
-			if (attrs.isEmpty() || !Boolean.valueOf(String.valueOf(attrs.get("session:isValid")))) {
+			Map<String, byte[]> attrs = getMap(sessionId);
+
+			if (attrs == null || attrs.isEmpty()) {
+				if (attrs != null && negativeCache != null) {
+					negativeCache.add(sessionId);
+				}
+				if (metrics != null) {
+					metrics.recordFindSession("miss");
+				}
                 return null;
             }
 
+			if (metrics != null) {
+				metrics.recordFindSession("cluster");
+				metrics.recordSessionSize(attrs);
+			}
+
 			session = createEmptySession();
 
 			// load backed params
-			session.load(attrs);
-
-			// update access
-			session.access();
-			session.endAccess();
+			try {
+				if (!session.load(attrs)) {
+					return null;
+				}
+			} catch (ClassNotFoundException e) {
+				log.error("Cannot load session", e);
+				return null;
+			}
 
-			// this will fire the save
-			session.setId(sessionId);
+			// register the session locally, it is already stored in the cluster
+			session.hydrate(sessionId);
 
             session.activate();
 		}
@@ -154,34 +1111,211 @@ public class RedisClusterSessionManager extends ManagerBase implements Lifecycle
 
 	@Override
 	public void remove(Session session, boolean update) {
+		release((RedisClusterSession) session);
 		super.remove(session, update);
-		((RedisClusterSession)session).delete();
+
+		List<String> swept = sweptKeys.get();
+		if (swept != null) {
+			// deleted along with the other sessions expired by the sweep
+			swept.addAll(((RedisClusterSession) session).detach());
+		} else {
+			((RedisClusterSession) session).delete();
+		}
 	}
 
 	@Override
 	public void add(Session session) {
-		super.add(session);
+		// saved before it is registered, so its size is accounted once
 		((RedisClusterSession)session).save();
+		super.add(session);
+		reside((RedisClusterSession) session);
+	}
+
+	/**
+	 * Adds a session loaded from the cluster to the local sessions, without saving it.
+	 */
+	protected void register(RedisClusterSession session) {
+		super.add(session);
+		reside(session);
+	}
+
+	/**
+	 * Adds a session loaded from the cluster to the local sessions unless a
+	 * session with the same id is already there.
+	 *
+	 * @return false if the session was not added
+	 */
+	protected boolean registerIfAbsent(RedisClusterSession session) {
+		if (sessions.putIfAbsent(session.getIdInternal(), session) != null) return false;
+
+		int size = getActiveSessions();
+		synchronized (maxActiveLock) {
+			if (size > maxActive) {
+				maxActive = size;
+			}
+		}
+		reside(session);
+		return true;
+	}
+
+	/**
+	 * Removes a session from the local sessions only, it stays in the cluster.
+	 */
+	protected void unregister(RedisClusterSession session) {
+		release(session);
+		super.remove(session, false);
+	}
+
+	private boolean isResidencyBounded() {
+		return maxResidentSessions > 0 || maxResidentBytes > 0;
+	}
+
+	private boolean isResident(RedisClusterSession session) {
+		String id = session.getIdInternal();
+		return id != null && sessions.get(id) == session;
+	}
+
+	/**
+	 * Enters a session in the clock of the resident sessions, then evicts
+	 * sessions if there are too many.
+	 */
+	private void reside(RedisClusterSession session) {
+		if (!isResidencyBounded()) return;
+
+		if (maxResidentBytes > 0) {
+			residentBytes.addAndGet(session.getResidentSize());
+		}
+		residents.offer(session);
+		evict();
+	}
+
+	private void release(RedisClusterSession session) {
+		if (maxResidentBytes > 0 && isResident(session)) {
+			residentBytes.addAndGet(-session.getResidentSize());
+		}
+	}
+
+	/**
+	 * Follows the size of the attributes of a session held on this node.
+	 */
+	protected void resized(RedisClusterSession session, long delta) {
+		if (maxResidentBytes > 0 && isResident(session)) {
+			residentBytes.addAndGet(delta);
+			if (delta > 0) {
+				evict();
+			}
+		}
+	}
+
+	private boolean isOverResidency() {
+		return maxResidentSessions > 0 && sessions.size() > maxResidentSessions
+				|| maxResidentBytes > 0 && residentBytes.get() > maxResidentBytes;
+	}
+
+	/**
+	 * Sweeps the clock of the resident sessions, giving a second chance to the
+	 * sessions accessed since the previous sweep, and drops the others from
+	 * the memory of this node until it is back within its bounds. A single
+	 * thread sweeps at a time, the others carry on.
+	 */
+	private void evict() {
+		if (!isOverResidency() || !evicting.tryLock()) return;
+
+		try {
+			// two turns of the clock at most: the first one may only clear the access marks
+			for (int steps = 2 * residents.size(); steps > 0 && isOverResidency(); steps--) {
+				RedisClusterSession session = residents.poll();
+				if (session == null) break;
+
+				// removed from this node since: leaves the clock
+				if (!isResident(session)) continue;
+
+				if (session.clearReferenced()) {
+					residents.offer(session);
+				} else {
+					unregister(session);
+					evictions.increment();
+				}
+			}
+		} finally {
+			evicting.unlock();
+		}
+	}
+
+	@Override
+	public void processExpires() {
+		List<String> swept = new ArrayList<String>();
+		sweptKeys.set(swept);
+		try {
+			super.processExpires();
+		} finally {
+			sweptKeys.remove();
+		}
+
+		if (!swept.isEmpty()) {
+			try {
+				redisClusterSessionOperator.delAll(swept);
+			} catch (Exception e) {
+				log.error("Cannot delete expired sessions", e);
+			}
+		}
+
+		if (isResidencyBounded()) {
+			// forget the sessions expired or invalidated since the last sweep
+			residents.removeIf(session -> !isResident(session));
+		}
 	}
 
 	@Override
 	protected void startInternal() throws LifecycleException {
 		super.startInternal();
 
+		if (metricsEnabled) {
+			metrics = new RedisClusterSessionMetrics(buildMetricsRecorder());
+		}
+
+		sessionKeyPrefix = buildKeyPrefix();
+		hashTagKeys = "hashTag".equalsIgnoreCase(keyScheme);
 		buildClient();
+		registerMetrics();
+
+		if (negativeCacheTtl > 0) {
+			negativeCache = new RedisClusterSessionNegativeCache(negativeCacheTtl, negativeCacheSize);
+			RedisClusterSessionNegativeCache cache = negativeCache;
+			try {
+				redisClusterSessionOperator.subscribe(created_channel, cache::created);
+			} catch (Exception e) {
+				log.error("Cannot subscribe to session creations", e);
+				throw new LifecycleException(e);
+			}
+		}
+
+		asyncWritePermits = new Semaphore(Math.max(1, maxAsyncWrites));
+
+		if (touchBatchInterval > 0) {
+			toucher = new RedisClusterSessionToucher(redisClusterSessionOperator, touchBatchInterval);
+		}
+
+		try {
+			load();
+		} catch (Exception e) {
+			log.error("Cannot load sessions", e);
+		}
 
 		setState(LifecycleState.STARTING);
 	}
 
 	protected void buildClient() throws LifecycleException {
 		try {
-			if("jedis".equalsIgnoreCase(implementation)) {
-				redisClusterSessionOperator = new JedisClusterImpl();
-			} else if("lettuce".equalsIgnoreCase(implementation)) {
-				redisClusterSessionOperator = new LettuceClusterImpl();
+			if (sharedClient) {
+				redisClusterSessionOperator = RedisClusterSessionSharedOperator.acquire(getClientKey(), this::newOperator);
+			} else {
+				redisClusterSessionOperator = newOperator();
 			}
 
-			redisClusterSessionOperator.buildClient(nodes, timeout);
+			if (metrics != null) {
+				redisClusterSessionOperator = new RedisClusterSessionMeteredOperator(redisClusterSessionOperator, metrics);
+			}
 		} catch (Exception e) {
 			log.error("Cannot initialize client", e);
 			throw new LifecycleException(e);
@@ -195,52 +1329,333 @@ public class RedisClusterSessionManager extends ManagerBase implements Lifecycle
 		}
 
 		if (loader != null) {
-			serializer = new RedisClusterSessionSerializer(loader.getClassLoader());
+			serializer = buildSerializer(loader.getClassLoader());
+			if (metrics != null) {
+				serializer = new RedisClusterSessionMeteredSerializer(serializer, metrics);
+			}
 		} else {
 			log.error("Cannot find loader");
 			throw new LifecycleException("Cannot find loader");
 		}
 	}
 
+	/**
+	 * @return a new client, connected to the nodes
+	 */
+	protected RedisClusterSessionOperator newOperator() throws Exception {
+		RedisClusterSessionOperator operator;
+		if("jedis".equalsIgnoreCase(implementation)) {
+			operator = new JedisClusterImpl();
+		} else if("lettuce".equalsIgnoreCase(implementation)) {
+			operator = new LettuceClusterImpl();
+		} else {
+			// any other RedisClusterSessionOperator, by class name
+			operator = (RedisClusterSessionOperator) Class.forName(implementation)
+					.getDeclaredConstructor().newInstance();
+		}
+
+		configure(operator);
+		operator.buildClient(nodes, timeout);
+		return operator;
+	}
+
+	/**
+	 * Applies the connection settings to the clients supporting them.
+	 */
+	protected void configure(RedisClusterSessionOperator operator) {
+		if (operator instanceof JedisClusterImpl) {
+			JedisClusterImpl jedis = (JedisClusterImpl) operator;
+			jedis.setPoolMaxTotal(poolMaxTotal);
+			jedis.setPoolMaxIdle(poolMaxIdle);
+			jedis.setPoolMinIdle(poolMinIdle);
+			jedis.setPoolMaxWait(poolMaxWait);
+			if (connectTimeout > 0) {
+				jedis.setConnectTimeout(connectTimeout);
+			}
+			if (commandTimeout > 0) {
+				jedis.setCommandTimeout(commandTimeout);
+			}
+			jedis.setMaxRedirections(maxRedirections);
+			jedis.setWaitReplicas(waitReplicas, waitTimeout);
+			if (pipelineInterval > 0) {
+				log.warn("pipelineInterval ignored with Jedis");
+			}
+		} else if (operator instanceof LettuceClusterImpl) {
+			LettuceClusterImpl lettuce = (LettuceClusterImpl) operator;
+			lettuce.setConnections(connections);
+			lettuce.setStriping(connectionStriping);
+			lettuce.setBulkConnection(bulkConnection);
+			lettuce.setConnectTimeout(connectTimeout);
+			lettuce.setCommandTimeout(commandTimeout);
+			lettuce.setMaxRedirections(maxRedirections);
+			lettuce.setWaitReplicas(waitReplicas, waitTimeout);
+			lettuce.setPipelining(pipelineInterval, pipelineMaxCommands);
+		}
+	}
+
+	/**
+	 * @return the nodes and the settings of the client, which the managers
+	 * sharing their client have in common
+	 */
+	protected String getClientKey() {
+		return implementation.toLowerCase(Locale.ROOT) + "|" + nodes + "|" + timeout
+				+ "|" + connectTimeout + "|" + commandTimeout + "|" + maxRedirections
+				+ "|" + poolMaxTotal + "|" + poolMaxIdle + "|" + poolMinIdle + "|" + poolMaxWait
+				+ "|" + connections + "|" + connectionStriping.toLowerCase(Locale.ROOT) + "|" + bulkConnection
+				+ "|" + waitReplicas + "|" + waitTimeout + "|" + pipelineInterval + "|" + pipelineMaxCommands;
+	}
+
+	protected RedisClusterSessionSerializer buildSerializer(ClassLoader classLoader) throws LifecycleException {
+		RedisClusterSessionSerializer serializer;
+		try {
+			serializer = (RedisClusterSessionSerializer) Class.forName(serializerClassName, true, classLoader)
+					.getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			log.error("Cannot initialize serializer " + serializerClassName, e);
+			throw new LifecycleException(e);
+		}
+
+		serializer.setClassLoader(classLoader);
+		if (serializer instanceof JavaSerializerImpl) {
+			((JavaSerializerImpl) serializer).setBase64(base64Encoding);
+		}
+
+		if (compressionThreshold > 0) {
+			if (base64Encoding) {
+				// the previous releases could not read the compressed values
+				log.warn("Compression disabled by base64Encoding");
+				return serializer;
+			}
+
+			RedisClusterSessionCodec codec;
+			try {
+				codec = (RedisClusterSessionCodec) Class.forName(compressionCodecClassName, true, classLoader)
+						.getDeclaredConstructor().newInstance();
+			} catch (Exception e) {
+				log.error("Cannot initialize compression codec " + compressionCodecClassName, e);
+				throw new LifecycleException(e);
+			}
+			serializer = new RedisClusterSessionCompressedSerializer(serializer, codec, compressionThreshold);
+		}
+		return serializer;
+	}
+
+	protected RedisClusterSessionMetricsRecorder buildMetricsRecorder() throws LifecycleException {
+		if (metricsRecorderClassName == null || metricsRecorderClassName.isEmpty()) return null;
+
+		try {
+			return (RedisClusterSessionMetricsRecorder) Class.forName(metricsRecorderClassName)
+					.getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			log.error("Cannot initialize metrics recorder " + metricsRecorderClassName, e);
+			throw new LifecycleException(e);
+		}
+	}
+
+	/**
+	 * Registers the metrics MBean next to the MBean of this manager.
+	 */
+	private void registerMetrics() {
+		if (metrics == null) return;
+
+		try {
+			String domain = getDomain() == null ? "Catalina" : getDomain();
+			metricsName = new ObjectName(domain + ":" + getObjectNameKeyProperties().replace("type=Manager", "type=RedisClusterSessionMetrics"));
+			Registry.getRegistry(null, null).getMBeanServer().registerMBean(metrics, metricsName);
+		} catch (Exception e) {
+			metricsName = null;
+			log.warn("Cannot register metrics", e);
+		}
+	}
+
+	private void unregisterMetrics() {
+		if (metricsName == null) return;
+
+		try {
+			Registry.getRegistry(null, null).getMBeanServer().unregisterMBean(metricsName);
+		} catch (Exception e) {
+			log.warn("Cannot unregister metrics", e);
+		}
+		metricsName = null;
+	}
+
 	@Override
 	protected void stopInternal() throws LifecycleException {
 		setState(LifecycleState.STOPPING);
 
+		if (prefetcher != null) {
+			prefetcher.shutdownNow();
+			prefetcher = null;
+		}
+
+		try {
+			unload();
+		} catch (Exception e) {
+			log.error("Cannot unload sessions", e);
+		}
+
 		try {
 			redisClusterSessionOperator.shutdown();
 		} catch (Exception e) {
 			log.error("Cannot stop", e);
 			throw new LifecycleException(e);
+		} finally {
+			unregisterMetrics();
+			metrics = null;
+			negativeCache = null;
 		}
 
 		super.stopInternal();
 	}
 
-	protected static String buildSessionKey(Session session) {
+	/**
+	 * @return the key prefix set, or else one built from the names of the host
+	 * and of the context if enabled, or else the prefix of the previous releases
+	 */
+	protected String buildKeyPrefix() {
+		if (keyPrefix != null) return keyPrefix;
+		if (!keyPrefixPerContext) return prefix_key;
+
+		Context context = getContextInternal();
+		String host = context.getParent() == null ? "" : context.getParent().getName();
+		return prefix_key + host + context.getPath() + ":";
+	}
+
+	protected String buildSessionKey(Session session) {
 		return session == null ? null : buildSessionKey(session.getId());
 	}
 
-	protected static String buildSessionKey(String sessionId) {
-		return sessionId == null ? null : new StringBuilder(prefix_key).append(sessionId).toString();
+	protected String buildSessionKey(String sessionId) {
+		if (sessionId == null) return null;
+
+		if (hashTagKeys) {
+			return new StringBuilder(sessionKeyPrefix.length() + sessionId.length() + 2)
+					.append(sessionKeyPrefix).append('{').append(sessionId).append('}').toString();
+		}
+		return new StringBuilder(sessionKeyPrefix).append(sessionId).toString();
 	}
 
-	private Map<String, Object> getMap(String sessionId) {
-		Map<String, Object> attrs = new HashMap<String, Object>();
+	/**
+	 * @return the raw fields of the session, deserialized by the session itself,
+	 * or null if the cluster cannot tell
+	 */
+	private Map<String, byte[]> getMap(String sessionId) {
+		Map<String, byte[]> attrs = new HashMap<String, byte[]>();
 
 		try {
-			Map<String, String> entries = redisClusterSessionOperator.getMap(buildSessionKey(sessionId));
+			Map<String, byte[]> entries = redisClusterSessionOperator.getMap(buildSessionKey(sessionId));
 			if(entries != null && !entries.isEmpty()) {
-				for(Entry<String, String> entry : entries.entrySet()) {
-					attrs.put(entry.getKey(), serializer.deserialize(entry.getValue()));
-				}
+				attrs.putAll(entries);
 			}
 		} catch (Exception e) {
 			log.error("Cannot get map", e);
+			return null;
 		}
 
 		return attrs;
 	}
 
+	/**
+	 * Opens the scope of the request running on the current thread.
+	 *
+	 * @return true if a new scope has been opened and must be closed by {@link #endRequest()}
+	 */
+	protected boolean beginRequest() {
+		if (!(writeBehind || persistMutations || sticky || metrics != null) || requestSessions.get() != null) return false;
+
+		requestSessions.set(new LinkedHashSet<RedisClusterSession>());
+		if (metrics != null) {
+			metrics.beginRequest();
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the scope of the current thread: writes the attributes changed in
+	 * place, then flushes the sessions changed by the request.
+	 */
+	protected void endRequest() {
+		Set<RedisClusterSession> sessions = requestSessions.get();
+		if (sessions == null) return;
+
+		// still in the scope, so the mutations join the pending batches
+		for (RedisClusterSession session : new ArrayList<RedisClusterSession>(sessions)) {
+			session.persistMutations();
+		}
+
+		requestSessions.remove();
+		for (RedisClusterSession session : sessions) {
+			session.flush();
+		}
+
+		if (metrics != null) {
+			metrics.endRequest();
+		}
+	}
+
+	/**
+	 * Registers a session in the write-behind scope of the current thread.
+	 *
+	 * @return false if no scope is opened, the changes must be written through
+	 */
+	protected boolean enlist(RedisClusterSession session) {
+		return writeBehind && track(session);
+	}
+
+	/**
+	 * Registers a session in the scope of the current thread, so it is
+	 * checked for attributes changed in place when the request ends.
+	 *
+	 * @return false if no scope is opened
+	 */
+	protected boolean track(RedisClusterSession session) {
+		Set<RedisClusterSession> sessions = requestSessions.get();
+		if (sessions == null) return false;
+
+		sessions.add(session);
+		return true;
+	}
+
+	/**
+	 * Registers a session in the scope of the current thread, so it is
+	 * refreshed once per request in sticky mode.
+	 *
+	 * @return false if the session has already been found by the current request
+	 */
+	private boolean firstFound(RedisClusterSession session) {
+		Set<RedisClusterSession> sessions = requestSessions.get();
+		return sessions == null || sessions.add(session);
+	}
+
+	/**
+	 * Sends a write whose reply is not needed, waiting only if too many writes
+	 * are already in flight.
+	 *
+	 * @return the completion of the write, which never completes exceptionally: failures are logged
+	 */
+	protected CompletableFuture<Void> writeAsync(Function<RedisClusterSessionAsyncOperator, CompletionStage<?>> command) {
+		asyncWritePermits.acquireUninterruptibly();
+
+		CompletionStage<?> write;
+		try {
+			write = command.apply(redisClusterSessionOperator.async());
+		} catch (RuntimeException e) {
+			asyncWritePermits.release();
+			asyncWriteFailures.increment();
+			log.error("Cannot write", e);
+			return CompletableFuture.completedFuture(null);
+		}
+
+		return write.handle((result, exception) -> {
+			asyncWritePermits.release();
+			if (exception != null) {
+				asyncWriteFailures.increment();
+				log.error("Cannot write", exception);
+			}
+			return (Void) null;
+		}).toCompletableFuture();
+	}
+
 	protected RedisClusterSessionOperator getSessionOperator() {
 		return redisClusterSessionOperator;
 	}
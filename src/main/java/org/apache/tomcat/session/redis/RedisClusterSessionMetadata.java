@@ -0,0 +1,67 @@
+package org.apache.tomcat.session.redis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Timestamps, interval and flags of a session packed in a single fixed-layout
+ * hash field:
+ *
+ * <pre>
+ * version (1) | creationTime (8) | lastAccessedTime (8) | thisAccessedTime (8) | maxInactiveInterval (4) | flags (1)
+ * </pre>
+ *
+ * Later versions may only append fields, so that a record can always be read
+ * by a node knowing an older layout.
+ *
+ */
+final class RedisClusterSessionMetadata {
+
+	static final String FIELD = "session:metadata";
+
+	private static final byte VERSION = 1;
+	private static final int LENGTH = 30;
+
+	private static final byte FLAG_VALID = 0x01;
+	private static final byte FLAG_NEW = 0x02;
+
+	final long creationTime;
+	final long lastAccessedTime;
+	final long thisAccessedTime;
+	final int maxInactiveInterval;
+	final boolean isValid;
+	final boolean isNew;
+
+	private RedisClusterSessionMetadata(ByteBuffer buffer) {
+		this.creationTime = buffer.getLong();
+		this.lastAccessedTime = buffer.getLong();
+		this.thisAccessedTime = buffer.getLong();
+		this.maxInactiveInterval = buffer.getInt();
+
+		byte flags = buffer.get();
+		this.isValid = (flags & FLAG_VALID) != 0;
+		this.isNew = (flags & FLAG_NEW) != 0;
+	}
+
+	static byte[] encode(long creationTime, long lastAccessedTime, long thisAccessedTime, int maxInactiveInterval,
+			boolean isValid, boolean isNew) {
+		return ByteBuffer.allocate(LENGTH)
+				.put(VERSION)
+				.putLong(creationTime)
+				.putLong(lastAccessedTime)
+				.putLong(thisAccessedTime)
+				.putInt(maxInactiveInterval)
+				.put((byte) ((isValid ? FLAG_VALID : 0) | (isNew ? FLAG_NEW : 0)))
+				.array();
+	}
+
+	static RedisClusterSessionMetadata decode(byte[] data) throws IOException {
+		if (data == null || data.length < LENGTH || data[0] < VERSION) {
+			throw new IOException("Invalid session metadata");
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		buffer.get();
+		return new RedisClusterSessionMetadata(buffer);
+	}
+}
@@ -0,0 +1,267 @@
+package org.apache.tomcat.session.redis;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Measures the latency of each method of an operator, counts the commands
+ * sent by the current request, and the failures by cluster node.
+ *
+ */
+final class RedisClusterSessionMeteredOperator implements RedisClusterSessionOperator {
+
+	private final RedisClusterSessionOperator operator;
+	private final RedisClusterSessionMetrics metrics;
+	private final RedisClusterSessionAsyncOperator async;
+
+	RedisClusterSessionMeteredOperator(RedisClusterSessionOperator operator, RedisClusterSessionMetrics metrics) {
+		this.operator = operator;
+		this.metrics = metrics;
+		this.async = new Async();
+	}
+
+	/**
+	 * @return the operator measured
+	 */
+	RedisClusterSessionOperator getOperator() {
+		return operator;
+	}
+
+	private <T> T measure(String command, String sessionKey, int commands, Supplier<T> call) {
+		metrics.countCommands(commands);
+
+		long start = System.nanoTime();
+		try {
+			T result = call.get();
+			metrics.recordCommand(command, System.nanoTime() - start, false);
+			return result;
+		} catch (RuntimeException exception) {
+			metrics.recordCommand(command, System.nanoTime() - start, true);
+			recordError(sessionKey, exception);
+			throw exception;
+		}
+	}
+
+	private void measure(String command, String sessionKey, int commands, Runnable call) {
+		measure(command, sessionKey, commands, () -> {
+			call.run();
+			return null;
+		});
+	}
+
+	private <T> CompletionStage<T> measureAsync(String command, String sessionKey, int commands, Supplier<CompletionStage<T>> call) {
+		metrics.countCommands(commands);
+
+		long start = System.nanoTime();
+		CompletionStage<T> stage;
+		try {
+			stage = call.get();
+		} catch (RuntimeException exception) {
+			metrics.recordCommand(command, System.nanoTime() - start, true);
+			recordError(sessionKey, exception);
+			throw exception;
+		}
+
+		return stage.whenComplete((result, exception) -> {
+			metrics.recordCommand(command, System.nanoTime() - start, exception != null);
+			if (exception != null) {
+				recordError(sessionKey, exception);
+			}
+		});
+	}
+
+	private void recordError(String sessionKey, Throwable exception) {
+		String node = null;
+		if (sessionKey != null) {
+			try {
+				node = operator.getNodeAddress(sessionKey);
+			} catch (RuntimeException e) {
+				// unknown
+			}
+		}
+		metrics.recordError(node == null ? "unknown" : node, isTimeout(exception));
+	}
+
+	/**
+	 * @return true if the exception, or one of its causes, reports a timeout
+	 */
+	static boolean isTimeout(Throwable exception) {
+		for (Throwable t = exception; t != null; t = t.getCause() == t ? null : t.getCause()) {
+			if (t instanceof SocketTimeoutException || t instanceof TimeoutException
+					|| t.getClass().getSimpleName().contains("Timeout")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int flushCommands(Map<String, byte[]> fields, Set<String> removedFields, String versionField, int expire) {
+		return (fields.isEmpty() ? 0 : 1) + (removedFields.isEmpty() ? 0 : 1) + (versionField == null ? 0 : 1) + (expire > 0 ? 1 : 0);
+	}
+
+	@Override
+	public void buildClient(String nodes, int timeout) {
+		operator.buildClient(nodes, timeout);
+	}
+
+	@Override
+	public void shutdown() throws IOException {
+		operator.shutdown();
+	}
+
+	@Override
+	public Map<String, byte[]> getMap(String sessionKey) {
+		return measure("getMap", sessionKey, 1, () -> operator.getMap(sessionKey));
+	}
+
+	@Override
+	public void del(String sessionKey) {
+		measure("del", sessionKey, 1, () -> operator.del(sessionKey));
+	}
+
+	@Override
+	public void expire(String sessionKey, int expire) {
+		measure("expire", sessionKey, 1, () -> operator.expire(sessionKey, expire));
+	}
+
+	@Override
+	public void hset(String sessionKey, String field, byte[] value) {
+		measure("hset", sessionKey, 1, () -> operator.hset(sessionKey, field, value));
+	}
+
+	@Override
+	public void hdel(String sessionKey, String field) {
+		measure("hdel", sessionKey, 1, () -> operator.hdel(sessionKey, field));
+	}
+
+	@Override
+	public void hmset(String sessionKey, Map<String, byte[]> map) {
+		measure("hmset", sessionKey, 1, () -> operator.hmset(sessionKey, map));
+	}
+
+	@Override
+	public Set<String> hkeys(String sessionKey) {
+		return measure("hkeys", sessionKey, 1, () -> operator.hkeys(sessionKey));
+	}
+
+	@Override
+	public byte[] hget(String sessionKey, String field) {
+		return measure("hget", sessionKey, 1, () -> operator.hget(sessionKey, field));
+	}
+
+	@Override
+	public Set<String> hkeysFromReplica(String sessionKey) {
+		return measure("hkeysFromReplica", sessionKey, 1, () -> operator.hkeysFromReplica(sessionKey));
+	}
+
+	@Override
+	public byte[] hgetFromReplica(String sessionKey, String field) {
+		return measure("hgetFromReplica", sessionKey, 1, () -> operator.hgetFromReplica(sessionKey, field));
+	}
+
+	@Override
+	public long flush(String sessionKey, Map<String, byte[]> fields, Set<String> removedFields, String versionField, int expire) {
+		return measure("flush", sessionKey, flushCommands(fields, removedFields, versionField, expire),
+				() -> operator.flush(sessionKey, fields, removedFields, versionField, expire));
+	}
+
+	@Override
+	public long compareAndFlush(String sessionKey, Map<String, byte[]> fields, Set<String> removedFields, String versionField, long expectedVersion, int expire) {
+		return measure("compareAndFlush", sessionKey, 1,
+				() -> operator.compareAndFlush(sessionKey, fields, removedFields, versionField, expectedVersion, expire));
+	}
+
+	@Override
+	public Map<String, Map<String, byte[]>> getMaps(Collection<String> sessionKeys) {
+		return measure("getMaps", null, sessionKeys.size(), () -> operator.getMaps(sessionKeys));
+	}
+
+	@Override
+	public void delAll(Collection<String> keys) {
+		measure("delAll", null, keys.size(), () -> operator.delAll(keys));
+	}
+
+	@Override
+	public void touch(Map<String, byte[]> values, String field, int expire) {
+		measure("touch", null, values.size(), () -> operator.touch(values, field, expire));
+	}
+
+	@Override
+	public void publish(String channel, String message) {
+		measure("publish", null, 1, () -> operator.publish(channel, message));
+	}
+
+	@Override
+	public void subscribe(String channel, Consumer<String> listener) {
+		operator.subscribe(channel, listener);
+	}
+
+	@Override
+	public RedisClusterSessionAsyncOperator async() {
+		return async;
+	}
+
+	@Override
+	public String getNodeAddress(String sessionKey) {
+		return operator.getNodeAddress(sessionKey);
+	}
+
+	/**
+	 * Measures the time until the reply of each asynchronous command.
+	 */
+	private class Async implements RedisClusterSessionAsyncOperator {
+
+		@Override
+		public CompletionStage<Map<String, byte[]>> getMap(String sessionKey) {
+			return measureAsync("async.getMap", sessionKey, 1, () -> operator.async().getMap(sessionKey));
+		}
+
+		@Override
+		public CompletionStage<Void> del(String sessionKey) {
+			return measureAsync("async.del", sessionKey, 1, () -> operator.async().del(sessionKey));
+		}
+
+		@Override
+		public CompletionStage<Void> expire(String sessionKey, int expire) {
+			return measureAsync("async.expire", sessionKey, 1, () -> operator.async().expire(sessionKey, expire));
+		}
+
+		@Override
+		public CompletionStage<Void> hset(String sessionKey, String field, byte[] value) {
+			return measureAsync("async.hset", sessionKey, 1, () -> operator.async().hset(sessionKey, field, value));
+		}
+
+		@Override
+		public CompletionStage<Void> hdel(String sessionKey, String field) {
+			return measureAsync("async.hdel", sessionKey, 1, () -> operator.async().hdel(sessionKey, field));
+		}
+
+		@Override
+		public CompletionStage<Set<String>> hkeys(String sessionKey) {
+			return measureAsync("async.hkeys", sessionKey, 1, () -> operator.async().hkeys(sessionKey));
+		}
+
+		@Override
+		public CompletionStage<byte[]> hget(String sessionKey, String field) {
+			return measureAsync("async.hget", sessionKey, 1, () -> operator.async().hget(sessionKey, field));
+		}
+
+		@Override
+		public CompletionStage<Long> flush(String sessionKey, Map<String, byte[]> fields, Set<String> removedFields, String versionField, int expire) {
+			return measureAsync("async.flush", sessionKey, flushCommands(fields, removedFields, versionField, expire),
+					() -> operator.async().flush(sessionKey, fields, removedFields, versionField, expire));
+		}
+
+		@Override
+		public CompletionStage<Void> publish(String channel, String message) {
+			return measureAsync("async.publish", null, 1, () -> operator.async().publish(channel, message));
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package org.apache.tomcat.session.redis;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Records the size of each serialized value and the time spent deserializing.
+ *
+ */
+final class RedisClusterSessionMeteredSerializer implements RedisClusterSessionSerializer {
+
+	private final RedisClusterSessionSerializer serializer;
+	private final RedisClusterSessionMetrics metrics;
+
+	RedisClusterSessionMeteredSerializer(RedisClusterSessionSerializer serializer, RedisClusterSessionMetrics metrics) {
+		this.serializer = serializer;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void setClassLoader(ClassLoader classLoader) {
+		serializer.setClassLoader(classLoader);
+	}
+
+	@Override
+	public byte[] serialize(Object o) throws IOException {
+		byte[] data = serializer.serialize(o);
+		if (o != null && data != null) {
+			metrics.recordAttributeSize(data.length);
+		}
+		return data;
+	}
+
+	@Override
+	public Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+		if (data == null) return serializer.deserialize(data);
+
+		long start = System.nanoTime();
+		try {
+			return serializer.deserialize(data);
+		} finally {
+			metrics.recordDeserialization(System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	public Object deserialize(InputStream in) throws IOException, ClassNotFoundException {
+		long start = System.nanoTime();
+		try {
+			return serializer.deserialize(in);
+		} finally {
+			metrics.recordDeserialization(System.nanoTime() - start);
+		}
+	}
+}
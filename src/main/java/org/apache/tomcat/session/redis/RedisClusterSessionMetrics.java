@@ -0,0 +1,232 @@
+package org.apache.tomcat.session.redis;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a {@link RedisClusterSessionManager}, exposed through JMX and
+ * forwarded to an optional {@link RedisClusterSessionMetricsRecorder}.
+ *
+ * Recording only increments striped counters: it stays cheap enough to be
+ * enabled under full load.
+ */
+public class RedisClusterSessionMetrics implements RedisClusterSessionMetricsMXBean, RedisClusterSessionMetricsRecorder {
+
+	private static final double MICROS = 1000;
+
+	private final RedisClusterSessionMetricsRecorder recorder;
+
+	private final ConcurrentMap<String, RedisClusterSessionHistogram> commandLatencies = new ConcurrentHashMap<String, RedisClusterSessionHistogram>();
+	private final RedisClusterSessionHistogram commandsPerRequest = new RedisClusterSessionHistogram();
+	private final RedisClusterSessionHistogram roundTripsPerRequest = new RedisClusterSessionHistogram();
+	private final RedisClusterSessionHistogram attributeSizes = new RedisClusterSessionHistogram();
+	private final RedisClusterSessionHistogram sessionSizes = new RedisClusterSessionHistogram();
+	private final RedisClusterSessionHistogram deserializationTimes = new RedisClusterSessionHistogram();
+
+	private final LongAdder localHits = new LongAdder();
+	private final LongAdder clusterLoads = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+	private final ConcurrentMap<String, LongAdder> timeouts = new ConcurrentHashMap<String, LongAdder>();
+
+	// commands and round trips of the request running on the current thread
+	private final ThreadLocal<long[]> requestCommands = new ThreadLocal<long[]>();
+
+	/**
+	 * @param recorder also receives the measurements, or null
+	 */
+	public RedisClusterSessionMetrics(RedisClusterSessionMetricsRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Starts counting the commands sent by the current thread.
+	 */
+	void beginRequest() {
+		requestCommands.set(new long[2]);
+	}
+
+	void countCommands(int commands) {
+		long[] counters = requestCommands.get();
+		if (counters != null) {
+			counters[0] += commands;
+			counters[1]++;
+		}
+	}
+
+	void endRequest() {
+		long[] counters = requestCommands.get();
+		if (counters == null) return;
+
+		requestCommands.remove();
+		recordRequest(counters[0], counters[1]);
+	}
+
+	@Override
+	public void recordCommand(String command, long nanos, boolean failed) {
+		RedisClusterSessionHistogram histogram = commandLatencies.get(command);
+		if (histogram == null) {
+			histogram = commandLatencies.computeIfAbsent(command, name -> new RedisClusterSessionHistogram());
+		}
+		histogram.record(nanos);
+
+		if (recorder != null) recorder.recordCommand(command, nanos, failed);
+	}
+
+	@Override
+	public void recordError(String node, boolean timeout) {
+		ConcurrentMap<String, LongAdder> counters = timeout ? timeouts : errors;
+		LongAdder counter = counters.get(node);
+		if (counter == null) {
+			counter = counters.computeIfAbsent(node, name -> new LongAdder());
+		}
+		counter.increment();
+
+		if (recorder != null) recorder.recordError(node, timeout);
+	}
+
+	@Override
+	public void recordRequest(long commands, long roundTrips) {
+		commandsPerRequest.record(commands);
+		roundTripsPerRequest.record(roundTrips);
+
+		if (recorder != null) recorder.recordRequest(commands, roundTrips);
+	}
+
+	@Override
+	public void recordAttributeSize(int bytes) {
+		attributeSizes.record(bytes);
+
+		if (recorder != null) recorder.recordAttributeSize(bytes);
+	}
+
+	@Override
+	public void recordSessionSize(long bytes) {
+		sessionSizes.record(bytes);
+
+		if (recorder != null) recorder.recordSessionSize(bytes);
+	}
+
+	void recordSessionSize(Map<String, byte[]> fields) {
+		long bytes = 0;
+		for (byte[] value : fields.values()) {
+			if (value != null) bytes += value.length;
+		}
+		recordSessionSize(bytes);
+	}
+
+	@Override
+	public void recordDeserialization(long nanos) {
+		deserializationTimes.record(nanos);
+
+		if (recorder != null) recorder.recordDeserialization(nanos);
+	}
+
+	@Override
+	public void recordFindSession(String outcome) {
+		if ("local".equals(outcome)) {
+			localHits.increment();
+		} else if ("cluster".equals(outcome)) {
+			clusterLoads.increment();
+		} else {
+			misses.increment();
+		}
+
+		if (recorder != null) recorder.recordFindSession(outcome);
+	}
+
+	@Override
+	public Map<String, RedisClusterSessionHistogram.Snapshot> getCommandLatencies() {
+		Map<String, RedisClusterSessionHistogram.Snapshot> snapshots = new TreeMap<String, RedisClusterSessionHistogram.Snapshot>();
+		for (Map.Entry<String, RedisClusterSessionHistogram> entry : commandLatencies.entrySet()) {
+			snapshots.put(entry.getKey(), entry.getValue().snapshot(MICROS));
+		}
+		return snapshots;
+	}
+
+	@Override
+	public RedisClusterSessionHistogram.Snapshot getCommandsPerRequest() {
+		return commandsPerRequest.snapshot(1);
+	}
+
+	@Override
+	public RedisClusterSessionHistogram.Snapshot getRoundTripsPerRequest() {
+		return roundTripsPerRequest.snapshot(1);
+	}
+
+	@Override
+	public RedisClusterSessionHistogram.Snapshot getAttributeSizes() {
+		return attributeSizes.snapshot(1);
+	}
+
+	@Override
+	public RedisClusterSessionHistogram.Snapshot getSessionSizes() {
+		return sessionSizes.snapshot(1);
+	}
+
+	@Override
+	public RedisClusterSessionHistogram.Snapshot getDeserializationTimes() {
+		return deserializationTimes.snapshot(MICROS);
+	}
+
+	@Override
+	public long getLocalHits() {
+		return localHits.sum();
+	}
+
+	@Override
+	public long getClusterLoads() {
+		return clusterLoads.sum();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	@Override
+	public double getLocalHitRatio() {
+		long hits = localHits.sum();
+		long found = hits + clusterLoads.sum();
+		return found == 0 ? 0 : (double) hits / found;
+	}
+
+	@Override
+	public Map<String, Long> getErrors() {
+		return sums(errors);
+	}
+
+	@Override
+	public Map<String, Long> getTimeouts() {
+		return sums(timeouts);
+	}
+
+	private static Map<String, Long> sums(Map<String, LongAdder> counters) {
+		Map<String, Long> sums = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+			sums.put(entry.getKey(), entry.getValue().sum());
+		}
+		return sums;
+	}
+
+	@Override
+	public void reset() {
+		for (RedisClusterSessionHistogram histogram : commandLatencies.values()) {
+			histogram.reset();
+		}
+		commandsPerRequest.reset();
+		roundTripsPerRequest.reset();
+		attributeSizes.reset();
+		sessionSizes.reset();
+		deserializationTimes.reset();
+		localHits.reset();
+		clusterLoads.reset();
+		misses.reset();
+		errors.clear();
+		timeouts.clear();
+	}
+}
@@ -0,0 +1,48 @@
+package org.apache.tomcat.session.redis;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics of a {@link RedisClusterSessionManager}. Latencies
+ * and times are in microseconds, sizes in bytes.
+ */
+public interface RedisClusterSessionMetricsMXBean {
+
+	/**
+	 * @return the latency of each operator method
+	 */
+	public Map<String, RedisClusterSessionHistogram.Snapshot> getCommandLatencies();
+
+	public RedisClusterSessionHistogram.Snapshot getCommandsPerRequest();
+
+	public RedisClusterSessionHistogram.Snapshot getRoundTripsPerRequest();
+
+	public RedisClusterSessionHistogram.Snapshot getAttributeSizes();
+
+	public RedisClusterSessionHistogram.Snapshot getSessionSizes();
+
+	public RedisClusterSessionHistogram.Snapshot getDeserializationTimes();
+
+	public long getLocalHits();
+
+	public long getClusterLoads();
+
+	public long getMisses();
+
+	/**
+	 * @return the share of the sessions found on the node, among the sessions found
+	 */
+	public double getLocalHitRatio();
+
+	/**
+	 * @return the failed commands, by node
+	 */
+	public Map<String, Long> getErrors();
+
+	/**
+	 * @return the timed out commands, by node
+	 */
+	public Map<String, Long> getTimeouts();
+
+	public void reset();
+}
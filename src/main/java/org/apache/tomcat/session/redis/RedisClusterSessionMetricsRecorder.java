@@ -0,0 +1,39 @@
+package org.apache.tomcat.session.redis;
+
+/**
+ * Receives the measurements of a {@link RedisClusterSessionManager}, to
+ * forward them to a metrics registry (Micrometer, Dropwizard...) along with the
+ * JMX attributes of {@link RedisClusterSessionMetrics}.
+ *
+ * The methods are called on the request threads: they must not block.
+ */
+public interface RedisClusterSessionMetricsRecorder {
+
+	/**
+	 * @param command name of the operator method
+	 * @param nanos time until the reply, or the failure
+	 */
+	public void recordCommand(String command, long nanos, boolean failed);
+
+	/**
+	 * @param node address of the node owning the key, or "unknown"
+	 * @param timeout the command has timed out, rather than failed
+	 */
+	public void recordError(String node, boolean timeout);
+
+	/**
+	 * Commands sent while a request was in the valves.
+	 */
+	public void recordRequest(long commands, long roundTrips);
+
+	public void recordAttributeSize(int bytes);
+
+	public void recordSessionSize(long bytes);
+
+	public void recordDeserialization(long nanos);
+
+	/**
+	 * @param outcome "local" if the session was on the node, "cluster" if loaded from the cluster, "miss" if not found
+	 */
+	public void recordFindSession(String outcome);
+}
@@ -0,0 +1,115 @@
+package org.apache.tomcat.session.redis;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node-local cache of the session ids recently found absent from the cluster,
+ * so the requests presenting them again are answered without a round trip.
+ *
+ * Every id is kept for the same time: the ids expire in the order they were
+ * added, and are purged from the head of that order. Past its maximum size,
+ * the oldest ids are dropped first.
+ *
+ * The ids of the sessions created recently, on any node, are not cached: such
+ * a session may not be written to the cluster yet (write-behind, asynchronous
+ * writes) when another node is asked for it.
+ *
+ */
+class RedisClusterSessionNegativeCache {
+
+	private final Ids absent;
+	private final Ids created;
+
+	RedisClusterSessionNegativeCache(long ttl, int maxSize) {
+		this.absent = new Ids(ttl, maxSize);
+		this.created = new Ids(ttl, maxSize);
+	}
+
+	/**
+	 * @return true if the session has been found absent less than the time to live ago
+	 */
+	boolean contains(String sessionId) {
+		return absent.contains(sessionId);
+	}
+
+	void add(String sessionId) {
+		if (created.contains(sessionId)) return;
+
+		absent.add(sessionId);
+	}
+
+	/**
+	 * Forgets an id given to a session created since, and keeps it from being
+	 * cached for the time to live.
+	 */
+	void created(String sessionId) {
+		created.add(sessionId);
+		absent.remove(sessionId);
+	}
+
+	int size() {
+		return absent.size();
+	}
+
+	/**
+	 * Ids expiring after the same time, in the order they were added.
+	 */
+	private static final class Ids {
+
+		private final long ttlNanos;
+		private final int maxSize;
+
+		// expiry time of each id
+		private final Map<String, Long> expiries = new ConcurrentHashMap<String, Long>();
+		// ids in the order they were added, possibly removed from the map since
+		private final Queue<String> order = new ConcurrentLinkedQueue<String>();
+
+		Ids(long ttl, int maxSize) {
+			this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+			this.maxSize = Math.max(1, maxSize);
+		}
+
+		boolean contains(String sessionId) {
+			Long expiry = expiries.get(sessionId);
+			if (expiry == null) return false;
+
+			if (System.nanoTime() - expiry >= 0) {
+				expiries.remove(sessionId, expiry);
+				return false;
+			}
+			return true;
+		}
+
+		void add(String sessionId) {
+			long now = System.nanoTime();
+			if (expiries.put(sessionId, now + ttlNanos) == null) {
+				order.offer(sessionId);
+			}
+			purge(now);
+		}
+
+		void remove(String sessionId) {
+			expiries.remove(sessionId);
+		}
+
+		private void purge(long now) {
+			String sessionId;
+			while ((sessionId = order.peek()) != null) {
+				Long expiry = expiries.get(sessionId);
+				if (expiry != null && now - expiry < 0 && expiries.size() <= maxSize) break;
+
+				if (order.remove(sessionId) && expiry != null) {
+					expiries.remove(sessionId, expiry);
+				}
+			}
+		}
+
+		int size() {
+			return expiries.size();
+		}
+	}
+}
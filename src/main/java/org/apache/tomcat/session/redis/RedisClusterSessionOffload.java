@@ -0,0 +1,190 @@
+package org.apache.tomcat.session.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reference to the value of a large attribute, stored out of the session hash
+ * in a key of its own of the same slot, so loading the session does not read
+ * it. The field of the attribute only holds this reference; the value is
+ * split in chunks (the fields "0", "1"... of the key), deflated if it makes it
+ * smaller, and read chunk by chunk when the attribute is accessed.
+ *
+ * The key is named after the fingerprint of the value: a new value is written
+ * to a new key, the previous one being left to expire shortly after, so the
+ * nodes still reading it can finish.
+ *
+ */
+final class RedisClusterSessionOffload {
+
+	// never the first bytes of a value of the serializers: 0xAC, 'r' or a type tag
+	private static final byte[] MAGIC = { 0x7F, 'R', 'C', 'O' };
+	private static final byte COMPRESSED = 0x01;
+
+	/**
+	 * Time in seconds a replaced value is kept for the nodes still reading it.
+	 */
+	static final int GRACE = 60;
+
+	final String name;
+	final long fingerprint;
+	final int length;
+	final int chunks;
+	final boolean compressed;
+
+	// the chunks to write, only for a value just offloaded
+	private Map<String, byte[]> fields;
+
+	private RedisClusterSessionOffload(String name, long fingerprint, int length, int chunks, boolean compressed) {
+		this.name = name;
+		this.fingerprint = fingerprint;
+		this.length = length;
+		this.chunks = chunks;
+		this.compressed = compressed;
+	}
+
+	/**
+	 * Splits the serialized value of an attribute in chunks.
+	 */
+	static RedisClusterSessionOffload of(String name, byte[] value, int chunkSize, boolean compress) throws IOException {
+		byte[] data = value;
+		boolean compressed = false;
+		if (compress) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(value.length / 4);
+			try (DeflaterOutputStream deflater = new DeflaterOutputStream(out)) {
+				deflater.write(value);
+			}
+			if (out.size() < value.length) {
+				data = out.toByteArray();
+				compressed = true;
+			}
+		}
+
+		int size = Math.max(1, chunkSize);
+		Map<String, byte[]> fields = new LinkedHashMap<String, byte[]>();
+		for (int offset = 0; offset < data.length; offset += size) {
+			fields.put(String.valueOf(fields.size()), Arrays.copyOfRange(data, offset, Math.min(data.length, offset + size)));
+		}
+
+		RedisClusterSessionOffload offload = new RedisClusterSessionOffload(name, RedisClusterSessionFingerprint.of(value),
+				value.length, fields.size(), compressed);
+		offload.fields = fields;
+		return offload;
+	}
+
+	/**
+	 * @return true if the field of an attribute holds a reference to its value
+	 */
+	static boolean isReference(byte[] data) {
+		return data != null && data.length > MAGIC.length && data[0] == MAGIC[0] && data[1] == MAGIC[1]
+				&& data[2] == MAGIC[2] && data[3] == MAGIC[3];
+	}
+
+	static RedisClusterSessionOffload decode(byte[] data) {
+		ByteBuffer buffer = ByteBuffer.wrap(data, MAGIC.length, data.length - MAGIC.length);
+		boolean compressed = (buffer.get() & COMPRESSED) != 0;
+		long fingerprint = buffer.getLong();
+		int length = buffer.getInt();
+		int chunks = buffer.getInt();
+		String name = new String(data, buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+		return new RedisClusterSessionOffload(name, fingerprint, length, chunks, compressed);
+	}
+
+	/**
+	 * @return the reference stored in the field of the attribute
+	 */
+	byte[] encode() {
+		byte[] encodedName = name.getBytes(StandardCharsets.UTF_8);
+		return ByteBuffer.allocate(MAGIC.length + 1 + 8 + 4 + 4 + encodedName.length)
+			.put(MAGIC)
+			.put(compressed ? COMPRESSED : 0)
+			.putLong(fingerprint)
+			.putInt(length)
+			.putInt(chunks)
+			.put(encodedName)
+			.array();
+	}
+
+	/**
+	 * @return the chunks of a value just offloaded, by field
+	 */
+	Map<String, byte[]> getFields() {
+		return fields;
+	}
+
+	/**
+	 * @return the key of the value, in the slot of the session: under its hash
+	 * tag if it has one, or the whole session key used as one
+	 */
+	String getKey(String sessionKey) {
+		int open = sessionKey.indexOf('{');
+		int close = open < 0 ? -1 : sessionKey.indexOf('}', open + 1);
+		String base = close > open + 1 ? sessionKey : "{" + sessionKey + "}";
+		return base + ":attr:" + name + ":" + Long.toHexString(fingerprint);
+	}
+
+	/**
+	 * @return the serialized value, read from the cluster chunk by chunk as it is consumed
+	 */
+	InputStream open(RedisClusterSessionOperator operator, String sessionKey) {
+		InputStream in = new Chunks(operator, getKey(sessionKey), chunks);
+		return compressed ? new InflaterInputStream(in) : in;
+	}
+
+	private static final class Chunks extends InputStream {
+
+		private final RedisClusterSessionOperator operator;
+		private final String key;
+		private final int count;
+
+		private int index = 0;
+		private byte[] chunk;
+		private int position;
+
+		Chunks(RedisClusterSessionOperator operator, String key, int count) {
+			this.operator = operator;
+			this.key = key;
+			this.count = count;
+		}
+
+		/**
+		 * @return false at the end of the value
+		 */
+		private boolean next() throws IOException {
+			while (chunk == null || position >= chunk.length) {
+				if (index >= count) return false;
+
+				chunk = operator.hget(key, String.valueOf(index++));
+				position = 0;
+				if (chunk == null) {
+					throw new IOException("Value " + key + " is gone, replaced or expired");
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return next() ? chunk[position++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			if (!next()) return -1;
+
+			int read = Math.min(len, chunk.length - position);
+			System.arraycopy(chunk, position, b, off, read);
+			position += read;
+			return read;
+		}
+	}
+}
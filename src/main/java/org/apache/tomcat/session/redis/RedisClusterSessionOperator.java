@@ -1,28 +1,112 @@
 package org.apache.tomcat.session.redis;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 
+/**
+ * Field names are UTF-8 strings, field values are raw bytes.
+ *
+ */
 public interface RedisClusterSessionOperator {
 
 	public void buildClient(String nodes, int timeout);
 
 	public void shutdown() throws IOException ;
 
-	public Map<String, String> getMap(String sessionKey);
+	public Map<String, byte[]> getMap(String sessionKey);
 
 	public void del(String sessionKey);
 
 	public void expire(String sessionKey, int expire);
 
-	public void hset(String sessionKey, String field, String value);
+	public void hset(String sessionKey, String field, byte[] value);
 
 	public void hdel(String sessionKey, String field);
 
-	public void hmset(String sessionKey, Map<String, String> map);
+	public void hmset(String sessionKey, Map<String, byte[]> map);
 
 	public Set<String> hkeys(String sessionKey);
 
-	public String hget(String sessionKey, String field);
+	public byte[] hget(String sessionKey, String field);
+
+	/**
+	 * Like {@link #hkeys(String)}, from a replica of the master owning the key
+	 * if it has one: the fields may lag behind the last writes.
+	 */
+	public Set<String> hkeysFromReplica(String sessionKey);
+
+	/**
+	 * Like {@link #hget(String, String)}, from a replica of the master owning
+	 * the key if it has one: the value may lag behind the last writes.
+	 */
+	public byte[] hgetFromReplica(String sessionKey, String field);
+
+	/**
+	 * Applies the changes of a session in a single round trip.
+	 *
+	 * @param versionField a counter field incremented along with the changes, or null
+	 * @param expire the new time to live, or 0 to keep the current one
+	 * @return the incremented value of the counter, or 0 if no counter field is given
+	 */
+	public long flush(String sessionKey, Map<String, byte[]> fields, Set<String> removedFields, String versionField, int expire);
+
+	/**
+	 * Applies the changes of a session atomically, only if its version field
+	 * still holds the expected value, then increments it. Runs
+	 * {@link RedisClusterSessionScripts#COMPARE_AND_FLUSH} on the node.
+	 *
+	 * @param expectedVersion the value of the version field, 0 if it is absent
+	 * @param expire the new time to live, or 0 to keep the current one
+	 * @return the incremented version, -1 - the current version if it was not the expected one, or
+	 * {@link RedisClusterSessionScripts#MISSING} if the session no longer exists and the changes are not the whole
+	 * session: nothing has been written
+	 */
+	public long compareAndFlush(String sessionKey, Map<String, byte[]> fields, Set<String> removedFields, String versionField, long expectedVersion, int expire);
+
+	/**
+	 * Reads many sessions at once: the keys are grouped by node, the commands
+	 * to each node pipelined, and the nodes read in parallel.
+	 *
+	 * @return the fields of each session found, by session key
+	 */
+	public Map<String, Map<String, byte[]>> getMaps(Collection<String> sessionKeys);
+
+	/**
+	 * Deletes many keys at once, grouped by node like {@link #getMaps(Collection)}.
+	 */
+	public void delAll(Collection<String> keys);
+
+	/**
+	 * Sets a field and refreshes the time to live of many sessions at once,
+	 * pipelining the commands sent to each node. The sessions which no longer
+	 * exist are left deleted: runs {@link RedisClusterSessionScripts#TOUCH}.
+	 *
+	 * @param values the value of the field, by session key
+	 */
+	public void touch(Map<String, byte[]> values, String field, int expire);
+
+	/**
+	 * Sends a message to the subscribers of a channel, whichever node they are connected to.
+	 */
+	public void publish(String channel, String message);
+
+	/**
+	 * Delivers the messages of a channel to a listener, on a thread of the
+	 * client, until the operator is shut down. The subscription survives
+	 * reconnections.
+	 */
+	public void subscribe(String channel, Consumer<String> listener);
+
+	/**
+	 * @return the non-blocking variant of this operator, sharing its client
+	 */
+	public RedisClusterSessionAsyncOperator async();
+
+	/**
+	 * @return the host:port of the master owning a key, or null if unknown
+	 */
+	public String getNodeAddress(String sessionKey);
 }
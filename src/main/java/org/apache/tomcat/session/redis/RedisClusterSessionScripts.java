@@ -0,0 +1,138 @@
+package org.apache.tomcat.session.redis;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lua scripts run by the cluster nodes. They are called by their SHA1 digest
+ * (EVALSHA), and loaded on the node (SCRIPT LOAD) the first time it does not
+ * know them.
+ *
+ */
+public final class RedisClusterSessionScripts {
+
+	/**
+	 * Applies the changes of a session only if its version field still holds
+	 * the expected value, then increments it.
+	 *
+	 * KEYS[1]: the session key. ARGV: the version field, the expected version,
+	 * the time to live (0 to keep it), the number n of fields set, n field/value
+	 * pairs, then the fields removed.
+	 *
+	 * A missing session is only created by a write of the whole session, the
+	 * one carrying its creation marker: the changes of a session deleted by
+	 * another node in between must not recreate it partially.
+	 *
+	 * Returns the incremented version, -1 - the current version if it was not
+	 * the expected one, or {@link #MISSING} if the session no longer exists,
+	 * in which cases nothing is written.
+	 */
+	public static final String COMPARE_AND_FLUSH =
+			"local n = tonumber(ARGV[4])\n" +
+			"if redis.call('EXISTS', KEYS[1]) == 0 then\n" +
+			"  local whole = false\n" +
+			"  for i = 5, 4 + 2 * n, 2 do\n" +
+			"    if ARGV[i] == '" + RedisClusterSession.CREATED_FIELD + "' then whole = true end\n" +
+			"  end\n" +
+			"  if not whole then\n" +
+			"    return 0\n" +
+			"  end\n" +
+			"end\n" +
+			"local version = tonumber(redis.call('HGET', KEYS[1], ARGV[1]) or '0')\n" +
+			"if version ~= tonumber(ARGV[2]) then\n" +
+			"  return -1 - version\n" +
+			"end\n" +
+			"if n > 0 then\n" +
+			"  redis.call('HMSET', KEYS[1], unpack(ARGV, 5, 4 + 2 * n))\n" +
+			"end\n" +
+			"if #ARGV > 4 + 2 * n then\n" +
+			"  redis.call('HDEL', KEYS[1], unpack(ARGV, 5 + 2 * n))\n" +
+			"end\n" +
+			"version = redis.call('HINCRBY', KEYS[1], ARGV[1], 1)\n" +
+			"local expire = tonumber(ARGV[3])\n" +
+			"if expire > 0 then\n" +
+			"  redis.call('EXPIRE', KEYS[1], expire)\n" +
+			"end\n" +
+			"return version\n";
+
+	public static final String COMPARE_AND_FLUSH_SHA1 = sha1(COMPARE_AND_FLUSH);
+
+	/**
+	 * Result of {@link #COMPARE_AND_FLUSH} when the session no longer exists.
+	 */
+	public static final long MISSING = 0;
+
+	/**
+	 * Sets a field and refreshes the time to live of a session, only if it
+	 * still exists: a late access time update must not recreate a session
+	 * deleted by another node in between.
+	 *
+	 * KEYS[1]: the session key. ARGV: the field, its value, the time to live
+	 * (0 to keep it).
+	 *
+	 * Returns 1, or 0 if the session no longer exists.
+	 */
+	public static final String TOUCH =
+			"if redis.call('EXISTS', KEYS[1]) == 0 then\n" +
+			"  return 0\n" +
+			"end\n" +
+			"redis.call('HSET', KEYS[1], ARGV[1], ARGV[2])\n" +
+			"local expire = tonumber(ARGV[3])\n" +
+			"if expire > 0 then\n" +
+			"  redis.call('EXPIRE', KEYS[1], expire)\n" +
+			"end\n" +
+			"return 1\n";
+
+	public static final String TOUCH_SHA1 = sha1(TOUCH);
+
+	private RedisClusterSessionScripts() {
+	}
+
+	/**
+	 * @return the arguments (ARGV) of {@link #COMPARE_AND_FLUSH}
+	 */
+	public static byte[][] compareAndFlushArguments(Map<String, byte[]> fields, Set<String> removedFields, String versionField, long expectedVersion, int expire) {
+		byte[][] arguments = new byte[4 + fields.size() * 2 + removedFields.size()][];
+		arguments[0] = versionField.getBytes(StandardCharsets.UTF_8);
+		arguments[1] = Long.toString(expectedVersion).getBytes(StandardCharsets.US_ASCII);
+		arguments[2] = Integer.toString(Math.max(0, expire)).getBytes(StandardCharsets.US_ASCII);
+		arguments[3] = Integer.toString(fields.size()).getBytes(StandardCharsets.US_ASCII);
+
+		int i = 4;
+		for (Map.Entry<String, byte[]> field : fields.entrySet()) {
+			arguments[i++] = field.getKey().getBytes(StandardCharsets.UTF_8);
+			arguments[i++] = field.getValue();
+		}
+		for (String field : removedFields) {
+			arguments[i++] = field.getBytes(StandardCharsets.UTF_8);
+		}
+		return arguments;
+	}
+
+	/**
+	 * @return the arguments (ARGV) of {@link #TOUCH}
+	 */
+	public static byte[][] touchArguments(String field, byte[] value, int expire) {
+		return new byte[][] {
+			field.getBytes(StandardCharsets.UTF_8),
+			value,
+			Integer.toString(Math.max(0, expire)).getBytes(StandardCharsets.US_ASCII)
+		};
+	}
+
+	public static String sha1(String script) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException exception) {
+			throw new IllegalStateException(exception);
+		}
+	}
+}
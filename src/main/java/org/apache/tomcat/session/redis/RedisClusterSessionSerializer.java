@@ -1,47 +1,31 @@
 package org.apache.tomcat.session.redis;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.Base64;
-
-import org.apache.catalina.util.CustomObjectInputStream;
-
-public class RedisClusterSessionSerializer {
-
-	private ClassLoader classLoader;
-	private static final String REDIS_NULL_VALUE = "__null__";
-
-	public RedisClusterSessionSerializer(ClassLoader classLoader) {
-		super();
-		this.classLoader = classLoader;
-	}
-
-	protected Object deserialize(String s) throws IOException, ClassNotFoundException {
-		Object o = null;
-		if (s != null) {
-			byte[] data = Base64.getDecoder().decode(s);
-			BufferedInputStream bis = new BufferedInputStream(new ByteArrayInputStream(data));
-			ObjectInputStream ois = new CustomObjectInputStream(bis, classLoader);
-			o = ois.readObject();
-			ois.close();
-
-			if (o != null && (o instanceof String) && ((String) o).equals(REDIS_NULL_VALUE)) {
-				o = null;
-			}
-		}
-		return o;
-	}
-
-	protected String serialize(Object o) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		ObjectOutputStream oos = new ObjectOutputStream(baos);
-		oos.writeObject(o == null ? REDIS_NULL_VALUE : o);
-		oos.flush();
-		oos.close();
-		return new String(Base64.getEncoder().encode(baos.toByteArray()));
+import java.io.InputStream;
+
+/**
+ * Converts attribute values to the bytes stored in the session hash.
+ *
+ * Implementations are selected with the serializerClassName attribute of the
+ * manager, and must provide a public no-argument constructor.
+ *
+ */
+public interface RedisClusterSessionSerializer {
+
+	/**
+	 * @param classLoader the class loader of the web application, used to resolve the deserialized classes
+	 */
+	public void setClassLoader(ClassLoader classLoader);
+
+	public byte[] serialize(Object o) throws IOException;
+
+	public Object deserialize(byte[] data) throws IOException, ClassNotFoundException;
+
+	/**
+	 * Reads a value as it arrives, for the values too large to be held
+	 * serialized in a single array. By default the stream is read whole first.
+	 */
+	public default Object deserialize(InputStream in) throws IOException, ClassNotFoundException {
+		return deserialize(in.readAllBytes());
 	}
 }
@@ -0,0 +1,246 @@
+package org.apache.tomcat.session.redis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Reference to a client shared by all the managers of the JVM built with the
+ * same nodes and client settings. The client is built by the first manager
+ * acquiring it, and shut down when the last one releases it.
+ *
+ * The subscriptions made through a reference end with it, the client keeping
+ * a single subscription per channel.
+ *
+ */
+final class RedisClusterSessionSharedOperator implements RedisClusterSessionOperator {
+
+	private static final Log log = LogFactory.getLog(RedisClusterSessionSharedOperator.class);
+
+	private static final Map<String, Client> CLIENTS = new HashMap<String, Client>();
+
+	private final Client client;
+	private final List<Listener> listeners = new ArrayList<Listener>();
+	private boolean released = false;
+
+	private RedisClusterSessionSharedOperator(Client client) {
+		this.client = client;
+	}
+
+	/**
+	 * @param key the nodes and the settings of the client
+	 * @param builder builds the client, if no manager holds one with the same key
+	 * @return a new reference to the client, to shut down once unused
+	 */
+	static RedisClusterSessionOperator acquire(String key, Callable<RedisClusterSessionOperator> builder) throws Exception {
+		synchronized (CLIENTS) {
+			Client client = CLIENTS.get(key);
+			if (client == null) {
+				// the threads of the client outlive the context building it
+				Thread thread = Thread.currentThread();
+				ClassLoader contextClassLoader = thread.getContextClassLoader();
+				thread.setContextClassLoader(RedisClusterSessionSharedOperator.class.getClassLoader());
+				try {
+					client = new Client(key, builder.call());
+				} finally {
+					thread.setContextClassLoader(contextClassLoader);
+				}
+				CLIENTS.put(key, client);
+			}
+			client.references++;
+			return new RedisClusterSessionSharedOperator(client);
+		}
+	}
+
+	/**
+	 * @return the client shared
+	 */
+	RedisClusterSessionOperator getOperator() {
+		return client.operator;
+	}
+
+	/**
+	 * Does nothing: the shared client has been built by the manager which
+	 * acquired it first.
+	 */
+	@Override
+	public void buildClient(String nodes, int timeout) {
+		log.info("The shared client of " + nodes + " is already built");
+	}
+
+	/**
+	 * Releases this reference, and shuts the client down if it was the last one.
+	 */
+	@Override
+	public void shutdown() throws IOException {
+		synchronized (CLIENTS) {
+			if (released) return;
+			released = true;
+
+			for (Listener listener : listeners) {
+				client.channels.get(listener.channel).remove(listener);
+			}
+			listeners.clear();
+
+			if (--client.references > 0) return;
+			CLIENTS.remove(client.key);
+		}
+		client.operator.shutdown();
+	}
+
+	@Override
+	public Map<String, byte[]> getMap(String sessionKey) {
+		return client.operator.getMap(sessionKey);
+	}
+
+	@Override
+	public void del(String sessionKey) {
+		client.operator.del(sessionKey);
+	}
+
+	@Override
+	public void expire(String sessionKey, int expire) {
+		client.operator.expire(sessionKey, expire);
+	}
+
+	@Override
+	public void hset(String sessionKey, String field, byte[] value) {
+		client.operator.hset(sessionKey, field, value);
+	}
+
+	@Override
+	public void hdel(String sessionKey, String field) {
+		client.operator.hdel(sessionKey, field);
+	}
+
+	@Override
+	public void hmset(String sessionKey, Map<String, byte[]> map) {
+		client.operator.hmset(sessionKey, map);
+	}
+
+	@Override
+	public Set<String> hkeys(String sessionKey) {
+		return client.operator.hkeys(sessionKey);
+	}
+
+	@Override
+	public byte[] hget(String sessionKey, String field) {
+		return client.operator.hget(sessionKey, field);
+	}
+
+	@Override
+	public Set<String> hkeysFromReplica(String sessionKey) {
+		return client.operator.hkeysFromReplica(sessionKey);
+	}
+
+	@Override
+	public byte[] hgetFromReplica(String sessionKey, String field) {
+		return client.operator.hgetFromReplica(sessionKey, field);
+	}
+
+	@Override
+	public long flush(String sessionKey, Map<String, byte[]> fields, Set<String> removedFields, String versionField, int expire) {
+		return client.operator.flush(sessionKey, fields, removedFields, versionField, expire);
+	}
+
+	@Override
+	public long compareAndFlush(String sessionKey, Map<String, byte[]> fields, Set<String> removedFields, String versionField, long expectedVersion, int expire) {
+		return client.operator.compareAndFlush(sessionKey, fields, removedFields, versionField, expectedVersion, expire);
+	}
+
+	@Override
+	public Map<String, Map<String, byte[]>> getMaps(Collection<String> sessionKeys) {
+		return client.operator.getMaps(sessionKeys);
+	}
+
+	@Override
+	public void delAll(Collection<String> keys) {
+		client.operator.delAll(keys);
+	}
+
+	@Override
+	public void touch(Map<String, byte[]> values, String field, int expire) {
+		client.operator.touch(values, field, expire);
+	}
+
+	@Override
+	public void publish(String channel, String message) {
+		client.operator.publish(channel, message);
+	}
+
+	@Override
+	public void subscribe(String channel, Consumer<String> listener) {
+		synchronized (CLIENTS) {
+			if (released) throw new IllegalStateException("Released");
+
+			List<Listener> channelListeners = client.channels.get(channel);
+			if (channelListeners == null) {
+				List<Listener> dispatched = new CopyOnWriteArrayList<Listener>();
+				// the subscriber thread outlives the context subscribing first
+				Thread thread = Thread.currentThread();
+				ClassLoader contextClassLoader = thread.getContextClassLoader();
+				thread.setContextClassLoader(RedisClusterSessionSharedOperator.class.getClassLoader());
+				try {
+					client.operator.subscribe(channel, message -> {
+						for (Listener channelListener : dispatched) {
+							channelListener.listener.accept(message);
+						}
+					});
+				} finally {
+					thread.setContextClassLoader(contextClassLoader);
+				}
+				channelListeners = dispatched;
+				client.channels.put(channel, channelListeners);
+			}
+
+			Listener subscription = new Listener(channel, listener);
+			channelListeners.add(subscription);
+			listeners.add(subscription);
+		}
+	}
+
+	@Override
+	public RedisClusterSessionAsyncOperator async() {
+		return client.operator.async();
+	}
+
+	@Override
+	public String getNodeAddress(String sessionKey) {
+		return client.operator.getNodeAddress(sessionKey);
+	}
+
+	private static final class Client {
+
+		final String key;
+		final RedisClusterSessionOperator operator;
+		// listeners of the channels the client subscribed to, by channel
+		final Map<String, List<Listener>> channels = new HashMap<String, List<Listener>>();
+		int references = 0;
+
+		Client(String key, RedisClusterSessionOperator operator) {
+			this.key = key;
+			this.operator = operator;
+		}
+	}
+
+	private static final class Listener {
+
+		final String channel;
+		final Consumer<String> listener;
+
+		Listener(String channel, Consumer<String> listener) {
+			this.channel = channel;
+			this.listener = listener;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package org.apache.tomcat.session.redis;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Coalesces the access time updates of all the sessions of a manager, and
+ * sends them periodically in pipelined batches.
+ *
+ * A session touched several times between two batches is written once, with
+ * its latest metadata. A session deleted by another node before the batch is
+ * sent is not recreated by it. The updates of a batch which cannot be written
+ * are put back, to be sent with the next one.
+ *
+ */
+class RedisClusterSessionToucher {
+
+	private static final Log log = LogFactory.getLog(RedisClusterSessionToucher.class);
+
+	private final RedisClusterSessionOperator operator;
+	private final Map<String, Touch> pending = new ConcurrentHashMap<String, Touch>();
+	private final Set<String> writingKeys = ConcurrentHashMap.newKeySet();
+
+	// held while a batch is being written, so a session is not deleted under it
+	private final ReentrantLock writing = new ReentrantLock();
+
+	private final ScheduledExecutorService executor;
+
+	RedisClusterSessionToucher(RedisClusterSessionOperator operator, long interval) {
+		this.operator = operator;
+
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "RedisClusterSessionToucher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.executor.scheduleWithFixedDelay(this::drain, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	void touch(String sessionKey, byte[] metadata, int expire) {
+		pending.put(sessionKey, new Touch(metadata, expire));
+	}
+
+	/**
+	 * Drops the pending update of a session, waiting for the batch being
+	 * written if it holds one. Called before the metadata of the session is
+	 * written through, or the session deleted, so a late update cannot revert it.
+	 */
+	void cancel(String sessionKey) {
+		pending.remove(sessionKey);
+		if (writingKeys.contains(sessionKey)) {
+			writing.lock();
+			writing.unlock();
+			// put back if the batch has failed
+			pending.remove(sessionKey);
+		}
+	}
+
+	/**
+	 * Writes the pending updates, one batch per time to live.
+	 */
+	void drain() {
+		writing.lock();
+		try {
+			Map<Integer, Map<String, byte[]>> batches = new HashMap<Integer, Map<String, byte[]>>();
+			for (String sessionKey : pending.keySet()) {
+				// marked before it is taken: cancel() either takes it first or sees the mark
+				writingKeys.add(sessionKey);
+
+				// the latest update of the session, even if it has been replaced since the iteration began
+				Touch touch = pending.remove(sessionKey);
+				if (touch == null) continue;
+
+				batches.computeIfAbsent(touch.expire, expire -> new HashMap<String, byte[]>())
+					.put(sessionKey, touch.metadata);
+			}
+
+			for (Entry<Integer, Map<String, byte[]>> batch : batches.entrySet()) {
+				try {
+					operator.touch(batch.getValue(), RedisClusterSessionMetadata.FIELD, batch.getKey());
+				} catch (Exception exception) {
+					log.error("Cannot touch sessions, retrying with the next batch", exception);
+					// unless touched again since
+					for (Entry<String, byte[]> touch : batch.getValue().entrySet()) {
+						pending.putIfAbsent(touch.getKey(), new Touch(touch.getValue(), batch.getKey()));
+					}
+				}
+			}
+		} finally {
+			writingKeys.clear();
+			writing.unlock();
+		}
+	}
+
+	/**
+	 * Writes the pending updates and stops the scheduler.
+	 */
+	void shutdown() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+		drain();
+	}
+
+	private static final class Touch {
+
+		final byte[] metadata;
+		final int expire;
+
+		Touch(byte[] metadata, int expire) {
+			this.metadata = metadata;
+			this.expire = expire;
+		}
+	}
+}
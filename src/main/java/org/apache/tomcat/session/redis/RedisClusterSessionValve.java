@@ -0,0 +1,45 @@
+package org.apache.tomcat.session.redis;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Manager;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+
+/**
+ * Marks the boundaries of a request, so that a {@link RedisClusterSessionManager}
+ * running in write-behind mode can flush the session changes once the request
+ * has been processed.
+ *
+ */
+public class RedisClusterSessionValve extends ValveBase {
+
+	public RedisClusterSessionValve() {
+		super(true);
+	}
+
+	@Override
+	public void invoke(Request request, Response response) throws IOException, ServletException {
+		Context context = request.getContext();
+		Manager manager = context == null ? null : context.getManager();
+
+		if (!(manager instanceof RedisClusterSessionManager)) {
+			getNext().invoke(request, response);
+			return;
+		}
+
+		RedisClusterSessionManager sessionManager = (RedisClusterSessionManager) manager;
+		boolean scope = sessionManager.beginRequest();
+		try {
+			getNext().invoke(request, response);
+		} finally {
+			if (scope) {
+				sessionManager.endRequest();
+			}
+		}
+	}
+}
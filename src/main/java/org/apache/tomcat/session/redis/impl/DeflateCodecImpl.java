@@ -0,0 +1,61 @@
+package org.apache.tomcat.session.redis.impl;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.tomcat.session.redis.RedisClusterSessionCodec;
+
+/**
+ * Default codec: Deflate (zlib) from the JDK, at its fastest level unless set.
+ * Each thread reuses its own Deflater.
+ *
+ */
+public class DeflateCodecImpl implements RedisClusterSessionCodec {
+
+	public static final byte HEADER = 0x1F;
+
+	private int level = Deflater.BEST_SPEED;
+	private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+
+	/**
+	 * @param level from 1 (fastest) to 9 (smallest)
+	 */
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	@Override
+	public byte getHeader() {
+		return HEADER;
+	}
+
+	@Override
+	public byte[] compress(byte[] data) {
+		if (data.length < 2) return null;
+
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setLevel(level);
+		deflater.setInput(data);
+		deflater.finish();
+
+		// gives up as soon as the output is no smaller than the input
+		byte[] out = new byte[data.length];
+		out[0] = HEADER;
+		int length = 1;
+		while (!deflater.finished() && length < out.length) {
+			length += deflater.deflate(out, length, out.length - length);
+		}
+		boolean finished = deflater.finished();
+		// releases the data
+		deflater.reset();
+		return finished ? Arrays.copyOf(out, length) : null;
+	}
+
+	@Override
+	public InputStream decompress(InputStream in) {
+		return new InflaterInputStream(in);
+	}
+}
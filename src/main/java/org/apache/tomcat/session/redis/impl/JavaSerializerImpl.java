@@ -0,0 +1,97 @@
+package org.apache.tomcat.session.redis.impl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Base64;
+
+import org.apache.catalina.util.CustomObjectInputStream;
+import org.apache.tomcat.session.redis.RedisClusterSessionSerializer;
+
+/**
+ * Plain Java serialization of the values.
+ *
+ */
+public class JavaSerializerImpl implements RedisClusterSessionSerializer {
+
+	private ClassLoader classLoader;
+	private boolean base64 = false;
+	private static final String REDIS_NULL_VALUE = "__null__";
+
+	@Override
+	public void setClassLoader(ClassLoader classLoader) {
+		this.classLoader = classLoader;
+	}
+
+	public boolean isBase64() {
+		return base64;
+	}
+
+	/**
+	 * @param base64 write values Base64 encoded, as the previous releases did,
+	 *        so they remain readable by the nodes not yet upgraded
+	 */
+	public void setBase64(boolean base64) {
+		this.base64 = base64;
+	}
+
+	@Override
+	public Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+		Object o = null;
+		if (data != null) {
+			if (isBase64(data)) {
+				data = Base64.getDecoder().decode(data);
+			}
+
+			o = readObject(new BufferedInputStream(new ByteArrayInputStream(data)));
+		}
+		return o;
+	}
+
+	@Override
+	public Object deserialize(InputStream in) throws IOException, ClassNotFoundException {
+		BufferedInputStream bis = new BufferedInputStream(in);
+		bis.mark(3);
+		byte[] head = bis.readNBytes(3);
+		bis.reset();
+
+		return readObject(isBase64(head) ? new BufferedInputStream(Base64.getDecoder().wrap(bis)) : bis);
+	}
+
+	private Object readObject(InputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream ois = new CustomObjectInputStream(in, classLoader);
+		Object o = ois.readObject();
+		ois.close();
+
+		if (o != null && (o instanceof String) && ((String) o).equals(REDIS_NULL_VALUE)) {
+			o = null;
+		}
+		return o;
+	}
+
+	@Override
+	public byte[] serialize(Object o) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(baos);
+		oos.writeObject(o == null ? REDIS_NULL_VALUE : o);
+		oos.flush();
+		oos.close();
+		return base64 ? Base64.getEncoder().encode(baos.toByteArray()) : baos.toByteArray();
+	}
+
+	/**
+	 * A Java serialization stream starts with 0xACED, which reads "rO0" once
+	 * Base64 encoded by the previous releases.
+	 */
+	protected static boolean isBase64(byte[] data) {
+		return data.length >= 3 && data[0] == 'r' && data[1] == 'O' && data[2] == '0';
+	}
+
+	protected static boolean isJavaSerialization(byte[] data) {
+		return data.length >= 2 && data[0] == (byte) 0xAC && data[1] == (byte) 0xED;
+	}
+}
@@ -0,0 +1,106 @@
+package org.apache.tomcat.session.redis.impl;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.tomcat.session.redis.RedisClusterSessionAsyncOperator;
+import org.apache.tomcat.session.redis.RedisClusterSessionOperator;
+
+/**
+ * Runs the blocking Jedis commands on a pool of worker threads. The pool is
+ * striped by key, one thread per stripe, so the commands on a same key still
+ * run in order.
+ *
+ */
+public class JedisClusterAsyncImpl implements RedisClusterSessionAsyncOperator {
+
+	private final RedisClusterSessionOperator operator;
+	private final ExecutorService[] stripes;
+
+	public JedisClusterAsyncImpl(RedisClusterSessionOperator operator, int threads) {
+		this.operator = operator;
+		this.stripes = new ExecutorService[threads];
+
+		for (int i = 0; i < threads; i++) {
+			String name = "JedisClusterAsync-" + i;
+			stripes[i] = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, name);
+				// started by a request, not to hold the class loader of its context
+				thread.setContextClassLoader(JedisClusterAsyncImpl.class.getClassLoader());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	private <T> CompletableFuture<T> submit(String sessionKey, Supplier<T> command) {
+		return CompletableFuture.supplyAsync(command, stripes[Math.floorMod(sessionKey.hashCode(), stripes.length)]);
+	}
+
+	@Override
+	public CompletionStage<Map<String, byte[]>> getMap(String sessionKey) {
+		return submit(sessionKey, () -> operator.getMap(sessionKey));
+	}
+
+	@Override
+	public CompletionStage<Void> del(String sessionKey) {
+		return submit(sessionKey, () -> { operator.del(sessionKey); return null; });
+	}
+
+	@Override
+	public CompletionStage<Void> expire(String sessionKey, int expire) {
+		return submit(sessionKey, () -> { operator.expire(sessionKey, expire); return null; });
+	}
+
+	@Override
+	public CompletionStage<Void> hset(String sessionKey, String field, byte[] value) {
+		return submit(sessionKey, () -> { operator.hset(sessionKey, field, value); return null; });
+	}
+
+	@Override
+	public CompletionStage<Void> hdel(String sessionKey, String field) {
+		return submit(sessionKey, () -> { operator.hdel(sessionKey, field); return null; });
+	}
+
+	@Override
+	public CompletionStage<Set<String>> hkeys(String sessionKey) {
+		return submit(sessionKey, () -> operator.hkeys(sessionKey));
+	}
+
+	@Override
+	public CompletionStage<byte[]> hget(String sessionKey, String field) {
+		return submit(sessionKey, () -> operator.hget(sessionKey, field));
+	}
+
+	@Override
+	public CompletionStage<Long> flush(String sessionKey, Map<String, byte[]> fields, Set<String> removedFields, String versionField, int expire) {
+		return submit(sessionKey, () -> operator.flush(sessionKey, fields, removedFields, versionField, expire));
+	}
+
+	@Override
+	public CompletionStage<Void> publish(String channel, String message) {
+		return submit(channel, () -> { operator.publish(channel, message); return null; });
+	}
+
+	/**
+	 * Runs the commands already submitted, then stops the workers.
+	 */
+	public void shutdown() {
+		for (ExecutorService stripe : stripes) {
+			stripe.shutdown();
+		}
+		try {
+			for (ExecutorService stripe : stripes) {
+				stripe.awaitTermination(10, TimeUnit.SECONDS);
+			}
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -2,23 +2,145 @@ package org.apache.tomcat.session.redis.impl;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.session.redis.RedisClusterSessionAsyncOperator;
 import org.apache.tomcat.session.redis.RedisClusterSessionOperator;
+import org.apache.tomcat.session.redis.RedisClusterSessionScripts;
 
+import redis.clients.jedis.Client;
 import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.util.JedisClusterCRC16;
+import redis.clients.util.SafeEncoder;
 
 public class JedisClusterImpl implements RedisClusterSessionOperator {
 
+	private final static Log log = LogFactory.getLog(JedisClusterImpl.class);
+
+	private static final byte[] COMPARE_AND_FLUSH = SafeEncoder.encode(RedisClusterSessionScripts.COMPARE_AND_FLUSH);
+	private static final byte[] COMPARE_AND_FLUSH_SHA1 = SafeEncoder.encode(RedisClusterSessionScripts.COMPARE_AND_FLUSH_SHA1);
+	private static final byte[] TOUCH = SafeEncoder.encode(RedisClusterSessionScripts.TOUCH);
+	private static final byte[] TOUCH_SHA1 = SafeEncoder.encode(RedisClusterSessionScripts.TOUCH_SHA1);
+
+	private static final long REPLICAS_REFRESH_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+	private static final String[] NO_REPLICAS = {};
+
+	private int poolMaxTotal = 200;
+	private int poolMaxIdle = 20;
+	private int poolMinIdle = 5;
+	private long poolMaxWait = 0;
+	private int connectTimeout = Protocol.DEFAULT_TIMEOUT;
+	private int commandTimeout = Protocol.DEFAULT_TIMEOUT;
+	private int maxRedirections = 5;
+	private int waitReplicas = 0;
+	private long waitTimeout = 100;
+
 	private JedisCluster jedisCluster = null;
 
+	// host:port of the replicas of the master owning each slot, refreshed from CLUSTER SLOTS
+	private volatile String[][] replicasBySlot = null;
+	private volatile long replicasRefreshedAt = 0;
+	private JedisClusterAsyncImpl asyncOperator = null;
+	// runs the pipelines of the bulk commands to the nodes in parallel
+	private ExecutorService bulkExecutor = null;
+
+	// each subscription blocks a connection and its thread until unsubscribed
+	private final List<JedisPubSub> subscriptions = new CopyOnWriteArrayList<JedisPubSub>();
+	private volatile boolean shutdown = false;
+
+	/**
+	 * @param poolMaxTotal maximum number of connections to each node
+	 */
+	public void setPoolMaxTotal(int poolMaxTotal) {
+		this.poolMaxTotal = poolMaxTotal;
+	}
+
+	/**
+	 * @param poolMaxIdle maximum number of connections to each node kept open while unused
+	 */
+	public void setPoolMaxIdle(int poolMaxIdle) {
+		this.poolMaxIdle = poolMaxIdle;
+	}
+
+	/**
+	 * @param poolMinIdle minimum number of connections to each node kept open while unused
+	 */
+	public void setPoolMinIdle(int poolMinIdle) {
+		this.poolMinIdle = poolMinIdle;
+	}
+
+	/**
+	 * @param poolMaxWait time in milliseconds to wait for a connection when all are in use,
+	 * 0 for the timeout given to {@link #buildClient(String, int)}
+	 */
+	public void setPoolMaxWait(long poolMaxWait) {
+		this.poolMaxWait = poolMaxWait;
+	}
+
+	/**
+	 * @param connectTimeout time in milliseconds to wait for a connection to a node to open
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * @param commandTimeout time in milliseconds to wait for the reply to a command
+	 */
+	public void setCommandTimeout(int commandTimeout) {
+		this.commandTimeout = commandTimeout;
+	}
+
+	/**
+	 * @param maxRedirections number of MOVED/ASK redirections followed before failing a command
+	 */
+	public void setMaxRedirections(int maxRedirections) {
+		this.maxRedirections = maxRedirections;
+	}
+
+	/**
+	 * @param waitReplicas number of replicas the changes flushed are to reach (WAIT) before the flush returns, 0 not to wait
+	 * @param waitTimeout time in milliseconds after which the flush returns anyway
+	 */
+	public void setWaitReplicas(int waitReplicas, long waitTimeout) {
+		this.waitReplicas = waitReplicas;
+		this.waitTimeout = waitTimeout;
+	}
+
+	/**
+	 * @param timeout in seconds, the time to wait for a pooled connection unless poolMaxWait is set
+	 */
 	@Override
 	public void buildClient(String nodes, int timeout) {
 		Set<HostAndPort> jedisClusterNodes = new HashSet<HostAndPort>();
@@ -28,25 +150,59 @@ public class JedisClusterImpl implements RedisClusterSessionOperator {
 		}
 
 		GenericObjectPoolConfig poolConfig = new JedisPoolConfig();
-		poolConfig.setMaxTotal(200);
-		poolConfig.setMaxIdle(20);
-		poolConfig.setMinIdle(5);
+		poolConfig.setMaxTotal(poolMaxTotal);
+		poolConfig.setMaxIdle(poolMaxIdle);
+		poolConfig.setMinIdle(poolMinIdle);
 
-		poolConfig.setMaxWaitMillis(TimeUnit.SECONDS.toMillis(timeout <= 0 ? Protocol.DEFAULT_TIMEOUT : timeout));
+		if (poolMaxWait > 0) {
+			poolConfig.setMaxWaitMillis(poolMaxWait);
+		} else {
+			poolConfig.setMaxWaitMillis(timeout <= 0 ? Protocol.DEFAULT_TIMEOUT : TimeUnit.SECONDS.toMillis(timeout));
+		}
 
-		jedisCluster = new JedisCluster(jedisClusterNodes, poolConfig);
+		jedisCluster = new JedisCluster(jedisClusterNodes, connectTimeout, commandTimeout, maxRedirections, poolConfig);
+	}
+
+	@Override
+	public synchronized RedisClusterSessionAsyncOperator async() {
+		if (asyncOperator == null) {
+			asyncOperator = new JedisClusterAsyncImpl(this, Math.max(2, Runtime.getRuntime().availableProcessors()));
+		}
+		return asyncOperator;
 	}
 
 	@Override
 	public void shutdown() throws IOException {
+		shutdown = true;
+		for (JedisPubSub subscription : subscriptions) {
+			if (subscription.isSubscribed()) {
+				subscription.unsubscribe();
+			}
+		}
+
+		synchronized (this) {
+			if (asyncOperator != null) {
+				asyncOperator.shutdown();
+			}
+			if (bulkExecutor != null) {
+				bulkExecutor.shutdown();
+			}
+		}
+
 		if (jedisCluster != null) {
 			jedisCluster.close();
 		}
 	}
 
 	@Override
-	public Map<String, String> getMap(String sessionKey) {
-		return jedisCluster.hgetAll(sessionKey);
+	public Map<String, byte[]> getMap(String sessionKey) {
+		Map<byte[], byte[]> entries = jedisCluster.hgetAll(SafeEncoder.encode(sessionKey));
+
+		Map<String, byte[]> map = new HashMap<String, byte[]>(entries.size() * 2);
+		for (Entry<byte[], byte[]> entry : entries.entrySet()) {
+			map.put(SafeEncoder.encode(entry.getKey()), entry.getValue());
+		}
+		return map;
 	}
 
 	@Override
@@ -60,8 +216,8 @@ public class JedisClusterImpl implements RedisClusterSessionOperator {
 	}
 
 	@Override
-	public void hset(String sessionKey, String field, String value) {
-		jedisCluster.hset(sessionKey, field, value);
+	public void hset(String sessionKey, String field, byte[] value) {
+		jedisCluster.hset(SafeEncoder.encode(sessionKey), SafeEncoder.encode(field), value);
 	}
 
 	@Override
@@ -70,8 +226,8 @@ public class JedisClusterImpl implements RedisClusterSessionOperator {
 	}
 
 	@Override
-	public void hmset(String sessionKey, Map<String, String> map) {
-		jedisCluster.hmset(sessionKey, map);
+	public void hmset(String sessionKey, Map<String, byte[]> map) {
+		jedisCluster.hmset(SafeEncoder.encode(sessionKey), encode(map));
 	}
 
 	@Override
@@ -80,7 +236,402 @@ public class JedisClusterImpl implements RedisClusterSessionOperator {
 	}
 
 	@Override
-	public String hget(String sessionKey, String field) {
-		return jedisCluster.hget(sessionKey, field);
+	public byte[] hget(String sessionKey, String field) {
+		return jedisCluster.hget(SafeEncoder.encode(sessionKey), SafeEncoder.encode(field));
+	}
+
+	@Override
+	public long flush(String sessionKey, Map<String, byte[]> fields, Set<String> removedFields, String versionField, int expire) {
+		byte[] key = SafeEncoder.encode(sessionKey);
+
+		try (Jedis jedis = jedisCluster.getConnectionFromSlot(JedisClusterCRC16.getSlot(sessionKey))) {
+			Pipeline pipeline = jedis.pipelined();
+			pipeline.multi();
+			if (!fields.isEmpty()) {
+				pipeline.hmset(key, encode(fields));
+			}
+			if (!removedFields.isEmpty()) {
+				pipeline.hdel(sessionKey, removedFields.toArray(new String[removedFields.size()]));
+			}
+			Response<Long> version = versionField == null ? null : pipeline.hincrBy(sessionKey, versionField, 1);
+			if (expire > 0) {
+				pipeline.expire(key, expire);
+			}
+			Response<List<Object>> result = pipeline.exec();
+			pipeline.sync();
+			result.get();
+
+			fence(jedis);
+			return version == null ? 0 : version.get();
+		} catch (JedisDataException exception) {
+			// the slot is moving (MOVED/ASK aborts the transaction): let the cluster client follow the redirection
+			if (!isAbortedByRedirection(exception, sessionKey)) throw exception;
+
+			if (!fields.isEmpty()) {
+				jedisCluster.hmset(key, encode(fields));
+			}
+			if (!removedFields.isEmpty()) {
+				jedisCluster.hdel(sessionKey, removedFields.toArray(new String[removedFields.size()]));
+			}
+			long version = versionField == null ? 0 : jedisCluster.hincrBy(sessionKey, versionField, 1);
+			if (expire > 0) {
+				jedisCluster.expire(key, expire);
+			}
+			return version;
+		}
+	}
+
+	@Override
+	public long compareAndFlush(String sessionKey, Map<String, byte[]> fields, Set<String> removedFields, String versionField, long expectedVersion, int expire) {
+		byte[][] arguments = RedisClusterSessionScripts.compareAndFlushArguments(fields, removedFields, versionField, expectedVersion, expire);
+		byte[][] params = new byte[arguments.length + 1][];
+		params[0] = SafeEncoder.encode(sessionKey);
+		System.arraycopy(arguments, 0, params, 1, arguments.length);
+
+		if (waitReplicas > 0) {
+			// on a connection of its own, to wait for the replication of the writes made on it
+			try (Jedis jedis = jedisCluster.getConnectionFromSlot(JedisClusterCRC16.getSlot(sessionKey))) {
+				Long result;
+				try {
+					result = (Long) jedis.evalsha(COMPARE_AND_FLUSH_SHA1, 1, params);
+				} catch (JedisNoScriptException exception) {
+					jedis.scriptLoad(COMPARE_AND_FLUSH);
+					result = (Long) jedis.evalsha(COMPARE_AND_FLUSH_SHA1, 1, params);
+				}
+				if (result > 0) {
+					fence(jedis);
+				}
+				return result;
+			} catch (JedisDataException exception) {
+				// the slot is moving: let the cluster client follow the redirection, without waiting
+				if (!isRedirection(exception)) throw exception;
+			}
+		}
+
+		try {
+			return (Long) jedisCluster.evalsha(COMPARE_AND_FLUSH_SHA1, 1, params);
+		} catch (JedisNoScriptException exception) {
+			// first call on the node owning the key: load the script there, then call it again
+			jedisCluster.scriptLoad(COMPARE_AND_FLUSH, params[0]);
+			return (Long) jedisCluster.evalsha(COMPARE_AND_FLUSH_SHA1, 1, params);
+		}
+	}
+
+	@Override
+	public Map<String, Map<String, byte[]>> getMaps(Collection<String> sessionKeys) {
+		Map<String, Map<byte[], byte[]>> entries = bulk(sessionKeys,
+				(pipeline, sessionKey) -> pipeline.hgetAll(SafeEncoder.encode(sessionKey)),
+				sessionKey -> jedisCluster.hgetAll(SafeEncoder.encode(sessionKey)));
+
+		Map<String, Map<String, byte[]>> maps = new HashMap<String, Map<String, byte[]>>(entries.size() * 2);
+		for (Entry<String, Map<byte[], byte[]>> session : entries.entrySet()) {
+			if (session.getValue() == null || session.getValue().isEmpty()) continue;
+
+			Map<String, byte[]> map = new HashMap<String, byte[]>(session.getValue().size() * 2);
+			for (Entry<byte[], byte[]> entry : session.getValue().entrySet()) {
+				map.put(SafeEncoder.encode(entry.getKey()), entry.getValue());
+			}
+			maps.put(session.getKey(), map);
+		}
+		return maps;
+	}
+
+	@Override
+	public void delAll(Collection<String> keys) {
+		bulk(keys, Pipeline::del, jedisCluster::del);
+	}
+
+	/**
+	 * Runs a command on many keys: pipelined on a connection to each node, the
+	 * nodes in parallel. A key whose slot is moving, or whose node fails, is
+	 * run again through the cluster client.
+	 *
+	 * @return the reply for each key
+	 */
+	private <T> Map<String, T> bulk(Collection<String> keys, BiFunction<Pipeline, String, Response<T>> pipelined, Function<String, T> direct) {
+		Map<String, List<String>> keysByNode = new HashMap<String, List<String>>();
+		for (String key : keys) {
+			String node = getNodeAddress(key);
+			keysByNode.computeIfAbsent(node == null ? "" : node, n -> new ArrayList<String>()).add(key);
+		}
+
+		Map<String, CompletableFuture<Map<String, Response<T>>>> pipelines = new HashMap<String, CompletableFuture<Map<String, Response<T>>>>();
+		for (Entry<String, List<String>> node : keysByNode.entrySet()) {
+			JedisPool pool = jedisCluster.getClusterNodes().get(node.getKey());
+			if (pool == null) continue;
+
+			pipelines.put(node.getKey(), CompletableFuture.supplyAsync(() -> {
+				Map<String, Response<T>> responses = new HashMap<String, Response<T>>(node.getValue().size() * 2);
+				try (Jedis jedis = pool.getResource()) {
+					Pipeline pipeline = jedis.pipelined();
+					for (String key : node.getValue()) {
+						responses.put(key, pipelined.apply(pipeline, key));
+					}
+					pipeline.sync();
+				}
+				return responses;
+			}, bulkExecutor()));
+		}
+
+		Map<String, T> replies = new HashMap<String, T>(keys.size() * 2);
+		for (Entry<String, List<String>> node : keysByNode.entrySet()) {
+			Map<String, Response<T>> responses = null;
+			try {
+				CompletableFuture<Map<String, Response<T>>> future = pipelines.get(node.getKey());
+				responses = future == null ? null : future.join();
+			} catch (RuntimeException exception) {
+				log.warn("Cannot reach " + node.getKey() + ", retrying key by key", exception);
+			}
+
+			for (String key : node.getValue()) {
+				try {
+					if (responses != null) {
+						replies.put(key, responses.get(key).get());
+						continue;
+					}
+				} catch (JedisDataException exception) {
+					// the slot is moving (MOVED/ASK): let the cluster client follow the redirection
+					if (!isRedirection(exception)) throw exception;
+				}
+				replies.put(key, direct.apply(key));
+			}
+		}
+		return replies;
+	}
+
+	private synchronized ExecutorService bulkExecutor() {
+		if (bulkExecutor == null) {
+			bulkExecutor = Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "JedisClusterBulk");
+				// started by a request, not to hold the class loader of its context
+				thread.setContextClassLoader(JedisClusterImpl.class.getClassLoader());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return bulkExecutor;
+	}
+
+	@Override
+	public void touch(Map<String, byte[]> values, String field, int expire) {
+		// one pipeline per node, whichever slot of it the keys hash to
+		Map<String, Pipeline> pipelines = new HashMap<String, Pipeline>();
+		Map<String, List<String>> keysByNode = new HashMap<String, List<String>>();
+		List<Jedis> connections = new ArrayList<Jedis>();
+		Map<String, Response<?>> responses = new HashMap<String, Response<?>>(values.size() * 2);
+
+		try {
+			for (Entry<String, byte[]> entry : values.entrySet()) {
+				Jedis jedis = jedisCluster.getConnectionFromSlot(JedisClusterCRC16.getSlot(entry.getKey()));
+				String node = jedis.getClient().getHost() + ":" + jedis.getClient().getPort();
+
+				Pipeline pipeline = pipelines.get(node);
+				if (pipeline == null) {
+					connections.add(jedis);
+					pipeline = jedis.pipelined();
+					pipelines.put(node, pipeline);
+				} else {
+					jedis.close();
+				}
+
+				responses.put(entry.getKey(), pipeline.evalsha(TOUCH_SHA1, 1, touchParams(entry.getKey(), field, entry.getValue(), expire)));
+				keysByNode.computeIfAbsent(node, n -> new ArrayList<String>()).add(entry.getKey());
+			}
+
+			for (Entry<String, Pipeline> pipeline : pipelines.entrySet()) {
+				try {
+					pipeline.getValue().sync();
+				} catch (JedisConnectionException exception) {
+					// the node is unreachable, or has failed over: its keys only are sent again below
+					log.warn("Cannot touch sessions on " + pipeline.getKey() + ", retrying", exception);
+					responses.keySet().removeAll(keysByNode.get(pipeline.getKey()));
+				}
+			}
+		} finally {
+			for (Jedis jedis : connections) {
+				jedis.close();
+			}
+		}
+
+		for (Entry<String, byte[]> entry : values.entrySet()) {
+			Response<?> response = responses.get(entry.getKey());
+			if (response != null) {
+				try {
+					response.get();
+					continue;
+				} catch (JedisDataException exception) {
+					// the slot is moving (MOVED/ASK), or the node does not know the script yet (NOSCRIPT)
+				}
+			}
+			// let the cluster client follow the redirection or the failover, the node caching the script sent whole
+			jedisCluster.eval(TOUCH, 1, touchParams(entry.getKey(), field, entry.getValue(), expire));
+		}
+	}
+
+	private static byte[][] touchParams(String sessionKey, String field, byte[] value, int expire) {
+		byte[][] arguments = RedisClusterSessionScripts.touchArguments(field, value, expire);
+		byte[][] params = new byte[arguments.length + 1][];
+		params[0] = SafeEncoder.encode(sessionKey);
+		System.arraycopy(arguments, 0, params, 1, arguments.length);
+		return params;
+	}
+
+	@Override
+	public void publish(String channel, String message) {
+		// the cluster bus forwards the message to the subscribers of every node
+		jedisCluster.publish(channel, message);
+	}
+
+	@Override
+	public void subscribe(String channel, Consumer<String> listener) {
+		JedisPubSub subscription = new JedisPubSub() {
+			@Override
+			public void onMessage(String messageChannel, String message) {
+				listener.accept(message);
+			}
+		};
+		subscriptions.add(subscription);
+
+		Thread thread = new Thread(() -> {
+			while (!shutdown) {
+				try {
+					// blocks until unsubscribed, or until the connection is lost
+					jedisCluster.subscribe(subscription, channel);
+				} catch (RuntimeException exception) {
+					if (shutdown) break;
+					log.warn("Cannot subscribe to " + channel + ", retrying", exception);
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+			}
+		}, "JedisClusterSubscriber-" + channel);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public String getNodeAddress(String sessionKey) {
+		try (Jedis jedis = jedisCluster.getConnectionFromSlot(JedisClusterCRC16.getSlot(sessionKey))) {
+			return jedis.getClient().getHost() + ":" + jedis.getClient().getPort();
+		} catch (RuntimeException exception) {
+			// the node cannot be reached
+			return null;
+		}
+	}
+
+	/**
+	 * Waits for the writes made on a connection to reach the replicas, if set.
+	 */
+	private void fence(Jedis jedis) {
+		if (waitReplicas > 0) {
+			jedis.waitReplicas(waitReplicas, waitTimeout);
+		}
+	}
+
+	private static boolean isRedirection(JedisDataException exception) {
+		String message = String.valueOf(exception.getMessage());
+		return message.startsWith("MOVED") || message.startsWith("ASK");
+	}
+
+	/**
+	 * @return true if a transaction on the key has been discarded because the
+	 * node redirected its commands: the pipeline does not expose the replies to
+	 * the queued commands, so the node is asked again outside of a transaction
+	 */
+	private boolean isAbortedByRedirection(JedisDataException exception, String sessionKey) {
+		if (isRedirection(exception)) return true;
+		if (!String.valueOf(exception.getMessage()).startsWith("EXECABORT")) return false;
+
+		try (Jedis jedis = jedisCluster.getConnectionFromSlot(JedisClusterCRC16.getSlot(sessionKey))) {
+			jedis.exists(sessionKey);
+			return false;
+		} catch (JedisDataException redirection) {
+			return isRedirection(redirection);
+		}
+	}
+
+	@Override
+	public Set<String> hkeysFromReplica(String sessionKey) {
+		return fromReplica(sessionKey, client -> client.hkeys(sessionKey),
+				client -> new HashSet<String>(client.getMultiBulkReply()), () -> hkeys(sessionKey));
+	}
+
+	@Override
+	public byte[] hgetFromReplica(String sessionKey, String field) {
+		return fromReplica(sessionKey, client -> client.hget(SafeEncoder.encode(sessionKey), SafeEncoder.encode(field)),
+				Client::getBinaryBulkReply, () -> hget(sessionKey, field));
+	}
+
+	/**
+	 * Sends a read to a replica of the master owning the key, pipelined after
+	 * the READONLY the replica requires, or to the master if the key has no
+	 * replica or the replica fails.
+	 */
+	private <T> T fromReplica(String sessionKey, Consumer<Client> command, Function<Client, T> reply, Supplier<T> fromMaster) {
+		String[] replicas = replicas(JedisClusterCRC16.getSlot(sessionKey));
+		JedisPool pool = replicas.length == 0 ? null
+				: jedisCluster.getClusterNodes().get(replicas[ThreadLocalRandom.current().nextInt(replicas.length)]);
+		if (pool == null) return fromMaster.get();
+
+		try (Jedis jedis = pool.getResource()) {
+			Client client = jedis.getClient();
+			client.readonly();
+			command.accept(client);
+			client.getStatusCodeReply();
+			return reply.apply(client);
+		} catch (JedisDataException|JedisConnectionException exception) {
+			// the replica has lost the slot, or cannot be reached: the topology is read again
+			replicasRefreshedAt = 0;
+			return fromMaster.get();
+		}
+	}
+
+	private String[] replicas(int slot) {
+		String[][] bySlot = replicasBySlot;
+		if (bySlot == null || System.currentTimeMillis() - replicasRefreshedAt > REPLICAS_REFRESH_INTERVAL) {
+			bySlot = refreshReplicas(slot);
+		}
+		String[] replicas = bySlot[slot];
+		return replicas == null ? NO_REPLICAS : replicas;
+	}
+
+	private synchronized String[][] refreshReplicas(int slot) {
+		if (replicasBySlot != null && System.currentTimeMillis() - replicasRefreshedAt <= REPLICAS_REFRESH_INTERVAL) {
+			return replicasBySlot;
+		}
+
+		String[][] bySlot = new String[JedisCluster.HASHSLOTS][];
+		try (Jedis jedis = jedisCluster.getConnectionFromSlot(slot)) {
+			// each range: start, end, master, then replicas, each as host, port, id
+			for (Object range : jedis.clusterSlots()) {
+				List<?> info = (List<?>) range;
+				List<String> replicas = new ArrayList<String>();
+				for (Object node : info.subList(3, info.size())) {
+					List<?> address = (List<?>) node;
+					replicas.add(SafeEncoder.encode((byte[]) address.get(0)) + ":" + address.get(1));
+				}
+				String[] rangeReplicas = replicas.toArray(new String[replicas.size()]);
+				for (int i = ((Long) info.get(0)).intValue(); i <= ((Long) info.get(1)).intValue(); i++) {
+					bySlot[i] = rangeReplicas;
+				}
+			}
+		} catch (RuntimeException exception) {
+			log.warn("Cannot read the replicas of the cluster", exception);
+		}
+
+		replicasBySlot = bySlot;
+		replicasRefreshedAt = System.currentTimeMillis();
+		return bySlot;
+	}
+
+	private static Map<byte[], byte[]> encode(Map<String, byte[]> map) {
+		Map<byte[], byte[]> binaryMap = new HashMap<byte[], byte[]>(map.size() * 2);
+		for (Entry<String, byte[]> entry : map.entrySet()) {
+			binaryMap.put(SafeEncoder.encode(entry.getKey()), entry.getValue());
+		}
+		return binaryMap;
 	}
 }
@@ -0,0 +1,105 @@
+package org.apache.tomcat.session.redis.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+import org.apache.tomcat.session.redis.RedisClusterSessionAsyncOperator;
+
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisAdvancedClusterAsyncCommands;
+
+/**
+ * Asynchronous commands of the Lettuce connections. The commands on a same key
+ * are written in order on the connection of the slot owner.
+ *
+ */
+public class LettuceClusterAsyncImpl implements RedisClusterSessionAsyncOperator {
+
+	private final Function<String, StatefulRedisClusterConnection<String, byte[]>> connections;
+
+	public LettuceClusterAsyncImpl(StatefulRedisClusterConnection<String, byte[]> connection) {
+		this(key -> connection);
+	}
+
+	/**
+	 * @param connections the connection of each key, the same for every command on it
+	 */
+	public LettuceClusterAsyncImpl(Function<String, StatefulRedisClusterConnection<String, byte[]>> connections) {
+		this.connections = connections;
+	}
+
+	private RedisAdvancedClusterAsyncCommands<String, byte[]> async(String sessionKey) {
+		return connections.apply(sessionKey).async();
+	}
+
+	@Override
+	public CompletionStage<Map<String, byte[]>> getMap(String sessionKey) {
+		return async(sessionKey).hgetall(sessionKey);
+	}
+
+	@Override
+	public CompletionStage<Void> del(String sessionKey) {
+		return async(sessionKey).del(sessionKey).thenApply(result -> null);
+	}
+
+	@Override
+	public CompletionStage<Void> expire(String sessionKey, int expire) {
+		return async(sessionKey).expire(sessionKey, expire).thenApply(result -> null);
+	}
+
+	@Override
+	public CompletionStage<Void> hset(String sessionKey, String field, byte[] value) {
+		return async(sessionKey).hset(sessionKey, field, value).thenApply(result -> null);
+	}
+
+	@Override
+	public CompletionStage<Void> hdel(String sessionKey, String field) {
+		return async(sessionKey).hdel(sessionKey, field).thenApply(result -> null);
+	}
+
+	@Override
+	public CompletionStage<Set<String>> hkeys(String sessionKey) {
+		return async(sessionKey).hkeys(sessionKey).thenApply(HashSet::new);
+	}
+
+	@Override
+	public CompletionStage<byte[]> hget(String sessionKey, String field) {
+		return async(sessionKey).hget(sessionKey, field);
+	}
+
+	@Override
+	public CompletionStage<Long> flush(String sessionKey, Map<String, byte[]> fields, Set<String> removedFields, String versionField, int expire) {
+		RedisAdvancedClusterAsyncCommands<String, byte[]> async = async(sessionKey);
+		List<CompletableFuture<?>> futures = new ArrayList<>(4);
+
+		if (!fields.isEmpty()) {
+			futures.add(async.hmset(sessionKey, fields).toCompletableFuture());
+		}
+		if (!removedFields.isEmpty()) {
+			futures.add(async.hdel(sessionKey, removedFields.toArray(new String[removedFields.size()])).toCompletableFuture());
+		}
+		RedisFuture<Long> version = versionField == null ? null : async.hincrby(sessionKey, versionField, 1);
+		if (version != null) {
+			futures.add(version.toCompletableFuture());
+		}
+		if (expire > 0) {
+			futures.add(async.expire(sessionKey, expire).toCompletableFuture());
+		}
+
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+			.thenApply(result -> version == null ? 0L : version.toCompletableFuture().join());
+	}
+
+	@Override
+	public CompletionStage<Void> publish(String channel, String message) {
+		return async(channel).publish(channel, message.getBytes(StandardCharsets.UTF_8)).thenApply(result -> null);
+	}
+}
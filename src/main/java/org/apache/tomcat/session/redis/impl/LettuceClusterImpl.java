@@ -1,36 +1,156 @@
 package org.apache.tomcat.session.redis.impl;
 
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
+import org.apache.tomcat.session.redis.RedisClusterSessionAsyncOperator;
 import org.apache.tomcat.session.redis.RedisClusterSessionOperator;
+import org.apache.tomcat.session.redis.RedisClusterSessionScripts;
 
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisCommandExecutionException;
 import io.lettuce.core.ReadFrom;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.RedisNoScriptException;
 import io.lettuce.core.RedisURI;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.SocketOptions;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.api.async.RedisHashAsyncCommands;
+import io.lettuce.core.api.async.RedisKeyAsyncCommands;
+import io.lettuce.core.api.sync.RedisCommands;
 import io.lettuce.core.cluster.ClusterClientOptions;
 import io.lettuce.core.cluster.ClusterTopologyRefreshOptions;
 import io.lettuce.core.cluster.RedisClusterClient;
+import io.lettuce.core.cluster.SlotHash;
 import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisAdvancedClusterAsyncCommands;
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+import io.lettuce.core.cluster.pubsub.StatefulRedisClusterPubSubConnection;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.pubsub.RedisPubSubAdapter;
 
 public class LettuceClusterImpl implements RedisClusterSessionOperator {
 
+	// field names are UTF-8 strings like the keys, field values are left as raw bytes
+	private static final RedisCodec<String, byte[]> CODEC = RedisCodec.of(StringCodec.UTF8, ByteArrayCodec.INSTANCE);
+
+	private static final byte[] COMPARE_AND_FLUSH = RedisClusterSessionScripts.COMPARE_AND_FLUSH.getBytes(StandardCharsets.UTF_8);
+	private static final byte[] TOUCH = RedisClusterSessionScripts.TOUCH.getBytes(StandardCharsets.UTF_8);
+
+	private int connections = 1;
+	private boolean stripedBySlot = false;
+	private boolean bulkConnection = false;
+	private long connectTimeout = 0;
+	private long commandTimeout = 0;
+	private int maxRedirections = 5;
+	private int waitReplicas = 0;
+	private long waitTimeout = 100;
+	private long pipelineInterval = 0;
+	private int pipelineMaxCommands = 64;
+
 	private RedisClusterClient clusterClient;
-	private StatefulRedisClusterConnection<String, String> connection;
+	private List<StatefulRedisClusterConnection<String, byte[]>> stripes;
+	private StatefulRedisClusterConnection<String, byte[]> connection;
+	private StatefulRedisClusterConnection<String, byte[]> bulk;
+	private volatile StatefulRedisClusterConnection<String, byte[]> replicas;
+	private LettuceClusterAsyncImpl asyncOperator;
+	// commands written but not flushed yet, when pipelining
+	private final AtomicInteger unflushed = new AtomicInteger();
+	private Thread flusher;
+	private final List<StatefulRedisClusterPubSubConnection<String, String>> subscriptions = new CopyOnWriteArrayList<>();
 
-	public StatefulRedisClusterConnection<String, String> getRedisCluster() {
+	public StatefulRedisClusterConnection<String, byte[]> getRedisCluster() {
 		return connection;
 	}
 
+	/**
+	 * @param connections number of connections to the cluster the commands are spread over
+	 */
+	public void setConnections(int connections) {
+		this.connections = connections;
+	}
+
+	/**
+	 * @param striping "thread" to give each request thread the same connection
+	 * (the default), or "slot" to send the commands on a same slot over the same connection
+	 */
+	public void setStriping(String striping) {
+		this.stripedBySlot = "slot".equalsIgnoreCase(striping);
+	}
+
+	/**
+	 * @param bulkConnection true to send the batches of commands on many keys over a
+	 * connection of their own, so they do not delay the commands of the requests
+	 */
+	public void setBulkConnection(boolean bulkConnection) {
+		this.bulkConnection = bulkConnection;
+	}
+
+	/**
+	 * @param connectTimeout time in milliseconds to wait for a connection to a node to open, 0 for the default
+	 */
+	public void setConnectTimeout(long connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * @param commandTimeout time in milliseconds to wait for the reply to a command, 0 for the default
+	 */
+	public void setCommandTimeout(long commandTimeout) {
+		this.commandTimeout = commandTimeout;
+	}
+
+	/**
+	 * @param maxRedirections number of MOVED/ASK redirections followed before failing a command
+	 */
+	public void setMaxRedirections(int maxRedirections) {
+		this.maxRedirections = maxRedirections;
+	}
+
+	/**
+	 * @param waitReplicas number of replicas the changes flushed are to reach (WAIT) before the flush returns, 0 not to wait
+	 * @param waitTimeout time in milliseconds after which the flush returns anyway
+	 */
+	public void setWaitReplicas(int waitReplicas, long waitTimeout) {
+		this.waitReplicas = waitReplicas;
+		this.waitTimeout = waitTimeout;
+	}
+
+	/**
+	 * @param pipelineInterval time in microseconds the commands of all the threads are held in
+	 * the buffers of the connections to be flushed together, 0 to flush each command at once
+	 * @param pipelineMaxCommands number of commands flushed without waiting for the end of the interval
+	 */
+	public void setPipelining(long pipelineInterval, int pipelineMaxCommands) {
+		this.pipelineInterval = pipelineInterval;
+		this.pipelineMaxCommands = pipelineMaxCommands;
+	}
+
 	@Override
 	public void buildClient(String nodes, int timeout) {
 		List<RedisURI> redisURIs = new ArrayList<>();
 		for(String server : nodes.split(",")) {
 			URI uri = URI.create("redis://" + server);
 			RedisURI node = RedisURI.create(uri.getHost(), uri.getPort());
+			if (commandTimeout > 0) {
+				node.setTimeout(Duration.ofMillis(commandTimeout));
+			}
 			redisURIs.add(node);
 		}
 
@@ -41,17 +161,110 @@ public class LettuceClusterImpl implements RedisClusterSessionOperator {
                 .enableAllAdaptiveRefreshTriggers()
 				.build();
 
-		clusterClient.setOptions(
-				ClusterClientOptions.builder().topologyRefreshOptions(topologyRefreshOptions).build());
+		ClusterClientOptions.Builder options = ClusterClientOptions.builder()
+				.topologyRefreshOptions(topologyRefreshOptions)
+				.maxRedirects(maxRedirections);
+		if (connectTimeout > 0) {
+			options.socketOptions(SocketOptions.builder().connectTimeout(Duration.ofMillis(connectTimeout)).build());
+		}
+		clusterClient.setOptions(options.build());
+
+		stripes = new ArrayList<>(Math.max(1, connections));
+		for (int i = 0; i < Math.max(1, connections); i++) {
+			stripes.add(connect());
+		}
+		connection = stripes.get(0);
+		bulk = bulkConnection ? connect() : null;
+
+		if (pipelineInterval > 0) {
+			// the node connections of a cluster connection follow its flush control
+			for (StatefulRedisClusterConnection<String, byte[]> stripe : stripes) {
+				stripe.setAutoFlushCommands(false);
+			}
+			if (bulk != null) {
+				bulk.setAutoFlushCommands(false);
+			}
+
+			long interval = TimeUnit.MICROSECONDS.toNanos(pipelineInterval);
+			flusher = new Thread(() -> {
+				while (!Thread.currentThread().isInterrupted()) {
+					LockSupport.parkNanos(interval);
+					flushCommands();
+				}
+			}, "LettuceClusterFlusher");
+			flusher.setDaemon(true);
+			flusher.start();
+		}
+
+		// the asynchronous commands on a same key stay on a same connection, in order
+		asyncOperator = new LettuceClusterAsyncImpl(key -> stripes.get(SlotHash.getSlot(key) % stripes.size()));
+	}
+
+	private StatefulRedisClusterConnection<String, byte[]> connect() {
+		// reads from the masters, which have every write of the sessions
+		return clusterClient.connect(CODEC);
+	}
+
+	/**
+	 * Writes the commands held in the buffers of the connections.
+	 */
+	private void flushCommands() {
+		unflushed.set(0);
+		for (StatefulRedisClusterConnection<String, byte[]> stripe : stripes) {
+			stripe.flushCommands();
+		}
+		if (bulk != null) {
+			bulk.flushCommands();
+		}
+	}
+
+	/**
+	 * Waits for the reply to a command, flushing the buffers first if they
+	 * hold enough commands when pipelining.
+	 */
+	private <T> T await(RedisFuture<T> future) {
+		if (flusher != null && unflushed.incrementAndGet() >= pipelineMaxCommands) {
+			flushCommands();
+		}
+		return LettuceFutures.awaitOrCancel(future, connection.getTimeout().toNanos(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return the connection of the calling thread, or of the slot of the key
+	 */
+	private StatefulRedisClusterConnection<String, byte[]> connection(String key) {
+		if (stripes.size() == 1) return connection;
 
-		connection = clusterClient.connect();
-		connection.setReadFrom(ReadFrom.SLAVE_PREFERRED);
+		int stripe = stripedBySlot && key != null ? SlotHash.getSlot(key) : (int) Thread.currentThread().getId();
+		return stripes.get(Math.floorMod(stripe, stripes.size()));
+	}
+
+	/**
+	 * @return the connection for the batches of commands on many keys
+	 */
+	private StatefulRedisClusterConnection<String, byte[]> bulkConnection() {
+		return bulk != null ? bulk : connection(null);
 	}
 
 	@Override
 	public void shutdown() {
-		if (connection != null) {
-			connection.close();
+		if (flusher != null) {
+			flusher.interrupt();
+		}
+		for (StatefulRedisClusterPubSubConnection<String, String> subscription : subscriptions) {
+			subscription.close();
+		}
+
+		if (stripes != null) {
+			for (StatefulRedisClusterConnection<String, byte[]> stripe : stripes) {
+				stripe.close();
+			}
+		}
+		if (bulk != null) {
+			bulk.close();
+		}
+		if (replicas != null) {
+			replicas.close();
 		}
 
 		if (clusterClient != null) {
@@ -60,42 +273,270 @@ public class LettuceClusterImpl implements RedisClusterSessionOperator {
 	}
 
 	@Override
-	public Map<String, String> getMap(String sessionKey) {
-		return connection.sync().hgetall(sessionKey);
+	public Map<String, byte[]> getMap(String sessionKey) {
+		return await(connection(sessionKey).async().hgetall(sessionKey));
 	}
 
 	@Override
 	public void del(String sessionKey) {
-		connection.sync().del(sessionKey);
+		await(connection(sessionKey).async().del(sessionKey));
 	}
 
 	@Override
 	public void expire(String sessionKey, int expire) {
-		connection.sync().expire(sessionKey, expire);
+		await(connection(sessionKey).async().expire(sessionKey, expire));
 	}
 
 	@Override
-	public void hset(String sessionKey, String field, String value) {
-		connection.sync().hset(sessionKey, field, value);
+	public void hset(String sessionKey, String field, byte[] value) {
+		await(connection(sessionKey).async().hset(sessionKey, field, value));
 	}
 
 	@Override
 	public void hdel(String sessionKey, String field) {
-		connection.sync().hdel(sessionKey, field);
+		await(connection(sessionKey).async().hdel(sessionKey, field));
 	}
 
 	@Override
-	public void hmset(String sessionKey, Map<String, String> map) {
-		connection.sync().hmset(sessionKey, map);
+	public void hmset(String sessionKey, Map<String, byte[]> map) {
+		await(connection(sessionKey).async().hmset(sessionKey, map));
 	}
 
 	@Override
 	public Set<String> hkeys(String sessionKey) {
-		return new HashSet<String>(connection.sync().hkeys(sessionKey));
+		return new HashSet<String>(await(connection(sessionKey).async().hkeys(sessionKey)));
+	}
+
+	@Override
+	public byte[] hget(String sessionKey, String field) {
+		return await(connection(sessionKey).async().hget(sessionKey, field));
+	}
+
+	@Override
+	public Set<String> hkeysFromReplica(String sessionKey) {
+		return new HashSet<String>(replicaConnection().sync().hkeys(sessionKey));
+	}
+
+	@Override
+	public byte[] hgetFromReplica(String sessionKey, String field) {
+		return replicaConnection().sync().hget(sessionKey, field);
+	}
+
+	/**
+	 * @return the connection reading from the replicas, opened on first use
+	 */
+	private StatefulRedisClusterConnection<String, byte[]> replicaConnection() {
+		StatefulRedisClusterConnection<String, byte[]> replicas = this.replicas;
+		if (replicas == null) {
+			synchronized (this) {
+				replicas = this.replicas;
+				if (replicas == null) {
+					replicas = clusterClient.connect(CODEC);
+					replicas.setReadFrom(ReadFrom.REPLICA_PREFERRED);
+					this.replicas = replicas;
+				}
+			}
+		}
+		return replicas;
+	}
+
+	@Override
+	public long flush(String sessionKey, Map<String, byte[]> fields, Set<String> removedFields, String versionField, int expire) {
+		if (waitReplicas > 0) {
+			// on the connection of the master, to wait for the replication of the writes made on it
+			StatefulRedisClusterConnection<String, byte[]> connection = connection(sessionKey);
+			RedisClusterNode master = connection.getPartitions().getPartitionBySlot(SlotHash.getSlot(sessionKey));
+			if (master != null) {
+				try {
+					RedisAsyncCommands<String, byte[]> async = connection.getConnection(master.getNodeId()).async();
+					RedisFuture<Long> version = flush(async, sessionKey, fields, removedFields, versionField, expire);
+					LettuceFutures.awaitOrCancel(async.waitForReplication(waitReplicas, waitTimeout),
+							connection.getTimeout().toNanos(), TimeUnit.NANOSECONDS);
+					return version == null ? 0 : LettuceFutures.awaitOrCancel(version, connection.getTimeout().toNanos(), TimeUnit.NANOSECONDS);
+				} catch (RedisCommandExecutionException exception) {
+					if (!isRedirection(exception)) throw exception;
+					// the slot is moving: let the cluster connection follow the redirection, without waiting
+				}
+			}
+		}
+
+		RedisFuture<Long> version = flush(connection(sessionKey).async(), sessionKey, fields, removedFields, versionField, expire);
+		return version == null ? 0 : LettuceFutures.awaitOrCancel(version, connection.getTimeout().toNanos(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Writes the commands of a flush back to back, and waits for their replies.
+	 *
+	 * @return the reply to the increment of the version field, or null
+	 */
+	private <C extends RedisHashAsyncCommands<String, byte[]> & RedisKeyAsyncCommands<String, byte[]>> RedisFuture<Long> flush(
+			C async, String sessionKey, Map<String, byte[]> fields, Set<String> removedFields, String versionField, int expire) {
+		List<RedisFuture<?>> futures = new ArrayList<>(4);
+
+		// commands are written back to back on the connection of the slot owner
+		if (!fields.isEmpty()) {
+			futures.add(async.hmset(sessionKey, fields));
+		}
+		if (!removedFields.isEmpty()) {
+			futures.add(async.hdel(sessionKey, removedFields.toArray(new String[removedFields.size()])));
+		}
+		RedisFuture<Long> version = versionField == null ? null : async.hincrby(sessionKey, versionField, 1);
+		if (version != null) {
+			futures.add(version);
+		}
+		if (expire > 0) {
+			futures.add(async.expire(sessionKey, expire));
+		}
+		if (flusher != null && unflushed.addAndGet(futures.size()) >= pipelineMaxCommands) {
+			flushCommands();
+		}
+
+		LettuceFutures.awaitAll(connection.getTimeout(), futures.toArray(new RedisFuture<?>[futures.size()]));
+		return version;
+	}
+
+	@Override
+	public long compareAndFlush(String sessionKey, Map<String, byte[]> fields, Set<String> removedFields, String versionField, long expectedVersion, int expire) {
+		String[] keys = { sessionKey };
+		byte[][] arguments = RedisClusterSessionScripts.compareAndFlushArguments(fields, removedFields, versionField, expectedVersion, expire);
+
+		try {
+			return evalsha(RedisClusterSessionScripts.COMPARE_AND_FLUSH_SHA1, keys, arguments);
+		} catch (RedisNoScriptException exception) {
+			// a node does not know the script yet: load it on every master, then call it again
+			LettuceFutures.awaitOrCancel(connection.async().scriptLoad(COMPARE_AND_FLUSH),
+					connection.getTimeout().toNanos(), TimeUnit.NANOSECONDS);
+			return evalsha(RedisClusterSessionScripts.COMPARE_AND_FLUSH_SHA1, keys, arguments);
+		}
+	}
+
+	/**
+	 * Runs a script on the connection of the master owning the key, where the
+	 * replication of its writes can be waited for.
+	 */
+	private long evalsha(String digest, String[] keys, byte[][] arguments) {
+		StatefulRedisClusterConnection<String, byte[]> connection = connection(keys[0]);
+		RedisClusterNode master = connection.getPartitions().getPartitionBySlot(SlotHash.getSlot(keys[0]));
+		if (master != null) {
+			try {
+				RedisCommands<String, byte[]> sync = connection.getConnection(master.getNodeId()).sync();
+				long result = sync.<Long>evalsha(digest, ScriptOutputType.INTEGER, keys, arguments);
+				if (result > 0 && waitReplicas > 0) {
+					sync.waitForReplication(waitReplicas, waitTimeout);
+				}
+				return result;
+			} catch (RedisCommandExecutionException exception) {
+				if (!isRedirection(exception)) throw exception;
+				// the slot is moving: let the cluster connection follow the redirection
+			}
+		}
+		return connection.sync().<Long>evalsha(digest, ScriptOutputType.INTEGER, keys, arguments);
+	}
+
+	private static boolean isRedirection(RedisCommandExecutionException exception) {
+		String message = String.valueOf(exception.getMessage());
+		return message.startsWith("MOVED") || message.startsWith("ASK");
+	}
+
+	@Override
+	public RedisClusterSessionAsyncOperator async() {
+		return asyncOperator;
+	}
+
+	@Override
+	public Map<String, Map<String, byte[]>> getMaps(Collection<String> sessionKeys) {
+		RedisAdvancedClusterAsyncCommands<String, byte[]> async = bulkConnection().async();
+		Map<String, RedisFuture<Map<String, byte[]>>> futures = new HashMap<>(sessionKeys.size() * 2);
+
+		// routed to the connection of each slot owner, where they are pipelined, the nodes in parallel
+		for (String sessionKey : sessionKeys) {
+			futures.put(sessionKey, async.hgetall(sessionKey));
+		}
+		if (flusher != null) {
+			bulkConnection().flushCommands();
+		}
+
+		LettuceFutures.awaitAll(connection.getTimeout(), futures.values().toArray(new RedisFuture<?>[futures.size()]));
+
+		Map<String, Map<String, byte[]>> maps = new HashMap<>(futures.size() * 2);
+		for (Map.Entry<String, RedisFuture<Map<String, byte[]>>> future : futures.entrySet()) {
+			Map<String, byte[]> map = future.getValue().toCompletableFuture().join();
+			if (map != null && !map.isEmpty()) {
+				maps.put(future.getKey(), map);
+			}
+		}
+		return maps;
+	}
+
+	@Override
+	public void delAll(Collection<String> keys) {
+		RedisAdvancedClusterAsyncCommands<String, byte[]> async = bulkConnection().async();
+		List<RedisFuture<?>> futures = new ArrayList<>(keys.size());
+
+		for (String key : keys) {
+			futures.add(async.del(key));
+		}
+		if (flusher != null) {
+			bulkConnection().flushCommands();
+		}
+
+		LettuceFutures.awaitAll(connection.getTimeout(), futures.toArray(new RedisFuture<?>[futures.size()]));
+	}
+
+	@Override
+	public void touch(Map<String, byte[]> values, String field, int expire) {
+		try {
+			touchAll(values, field, expire);
+		} catch (RedisNoScriptException exception) {
+			// a node does not know the script yet: load it on every master, then touch again
+			LettuceFutures.awaitOrCancel(connection.async().scriptLoad(TOUCH),
+					connection.getTimeout().toNanos(), TimeUnit.NANOSECONDS);
+			touchAll(values, field, expire);
+		}
+	}
+
+	private void touchAll(Map<String, byte[]> values, String field, int expire) {
+		RedisAdvancedClusterAsyncCommands<String, byte[]> async = bulkConnection().async();
+		List<RedisFuture<?>> futures = new ArrayList<>(values.size());
+
+		// routed to the connection of each slot owner, where they are pipelined
+		for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+			futures.add(async.<Long>evalsha(RedisClusterSessionScripts.TOUCH_SHA1, ScriptOutputType.INTEGER,
+					new String[] { entry.getKey() }, RedisClusterSessionScripts.touchArguments(field, entry.getValue(), expire)));
+		}
+		if (flusher != null) {
+			// a batch of its own: no need to wait for other commands
+			bulkConnection().flushCommands();
+		}
+
+		LettuceFutures.awaitAll(connection.getTimeout(), futures.toArray(new RedisFuture<?>[futures.size()]));
+	}
+
+	@Override
+	public void publish(String channel, String message) {
+		// the cluster bus forwards the message to the subscribers of every node
+		connection(null).sync().publish(channel, message.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public void subscribe(String channel, Consumer<String> listener) {
+		// the connection subscribes again to its channels when it reconnects
+		StatefulRedisClusterPubSubConnection<String, String> subscription = clusterClient.connectPubSub();
+		subscription.addListener(new RedisPubSubAdapter<String, String>() {
+			@Override
+			public void message(String messageChannel, String message) {
+				if (channel.equals(messageChannel)) {
+					listener.accept(message);
+				}
+			}
+		});
+		subscription.sync().subscribe(channel);
+		subscriptions.add(subscription);
 	}
 
 	@Override
-	public String hget(String sessionKey, String field) {
-		return connection.sync().hget(sessionKey, field);
+	public String getNodeAddress(String sessionKey) {
+		RedisClusterNode node = connection.getPartitions().getPartitionBySlot(SlotHash.getSlot(sessionKey));
+		return node == null ? null : node.getUri().getHost() + ":" + node.getUri().getPort();
 	}
 }
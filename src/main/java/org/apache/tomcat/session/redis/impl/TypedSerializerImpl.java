@@ -0,0 +1,295 @@
+package org.apache.tomcat.session.redis.impl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Default serializer: a one-byte type tag followed by a compact encoding for
+ * the common attribute types (Strings, boxed primitives, Dates, byte arrays and
+ * the usual collections of those). Any other value is written with plain Java
+ * serialization.
+ *
+ * The tags never collide with the first byte of a Java serialization stream
+ * (0xAC) nor of a Base64 value written by a previous release ('r'), so every
+ * existing value remains readable.
+ *
+ */
+public class TypedSerializerImpl extends JavaSerializerImpl {
+
+	private static final byte NULL = 0x01;
+	private static final byte STRING = 0x02;
+	private static final byte INTEGER = 0x03;
+	private static final byte LONG = 0x04;
+	private static final byte TRUE = 0x05;
+	private static final byte FALSE = 0x06;
+	private static final byte DOUBLE = 0x07;
+	private static final byte FLOAT = 0x08;
+	private static final byte SHORT = 0x09;
+	private static final byte BYTE = 0x0A;
+	private static final byte CHARACTER = 0x0B;
+	private static final byte DATE = 0x0C;
+	private static final byte BYTE_ARRAY = 0x0D;
+	private static final byte ARRAY_LIST = 0x0E;
+	private static final byte HASH_SET = 0x0F;
+	private static final byte LINKED_HASH_SET = 0x10;
+	private static final byte HASH_MAP = 0x11;
+	private static final byte LINKED_HASH_MAP = 0x12;
+
+	// deeper collections (or cyclic ones) are left to Java serialization
+	private static final int MAX_DEPTH = 8;
+
+	@Override
+	public byte[] serialize(Object o) throws IOException {
+		if (isBase64()) {
+			// the previous releases only read Java serialization
+			return super.serialize(o);
+		}
+
+		Output out = new Output();
+		if (!write(out, o, 0)) {
+			return super.serialize(o);
+		}
+		return out.toByteArray();
+	}
+
+	@Override
+	public Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+		if (data == null || data.length == 0 || isJavaSerialization(data) || isBase64(data)) {
+			return super.deserialize(data);
+		}
+
+		try {
+			return read(ByteBuffer.wrap(data));
+		} catch (BufferUnderflowException exception) {
+			throw new EOFException("Truncated value");
+		}
+	}
+
+	@Override
+	public Object deserialize(InputStream in) throws IOException, ClassNotFoundException {
+		BufferedInputStream bis = new BufferedInputStream(in);
+		bis.mark(3);
+		byte[] head = bis.readNBytes(3);
+		bis.reset();
+
+		// the large values are mostly Java serialization, read as the stream arrives
+		if (isJavaSerialization(head) || isBase64(head)) {
+			return super.deserialize(bis);
+		}
+		return deserialize(bis.readAllBytes());
+	}
+
+	/**
+	 * @return false if the value, or one of its elements, has no compact encoding
+	 */
+	private static boolean write(Output out, Object o, int depth) {
+		if (o == null) {
+			out.write(NULL);
+			return true;
+		}
+
+		Class<?> type = o.getClass();
+		if (type == String.class) {
+			out.write(STRING);
+			out.writeArray(((String) o).getBytes(StandardCharsets.UTF_8));
+		} else if (type == Integer.class) {
+			out.write(INTEGER);
+			out.writeVarLong((Integer) o);
+		} else if (type == Long.class) {
+			out.write(LONG);
+			out.writeVarLong((Long) o);
+		} else if (type == Boolean.class) {
+			out.write((Boolean) o ? TRUE : FALSE);
+		} else if (type == Double.class) {
+			out.write(DOUBLE);
+			out.writeFixedLong(Double.doubleToRawLongBits((Double) o));
+		} else if (type == Float.class) {
+			out.write(FLOAT);
+			out.writeFixedInt(Float.floatToRawIntBits((Float) o));
+		} else if (type == Short.class) {
+			out.write(SHORT);
+			out.writeVarLong((Short) o);
+		} else if (type == Byte.class) {
+			out.write(BYTE);
+			out.write((Byte) o);
+		} else if (type == Character.class) {
+			out.write(CHARACTER);
+			out.writeVarLong((Character) o);
+		} else if (type == Date.class) {
+			out.write(DATE);
+			out.writeVarLong(((Date) o).getTime());
+		} else if (type == byte[].class) {
+			out.write(BYTE_ARRAY);
+			out.writeArray((byte[]) o);
+		} else if (depth >= MAX_DEPTH) {
+			return false;
+		} else if (type == ArrayList.class) {
+			out.write(ARRAY_LIST);
+			return writeCollection(out, (Collection<?>) o, depth);
+		} else if (type == HashSet.class) {
+			out.write(HASH_SET);
+			return writeCollection(out, (Collection<?>) o, depth);
+		} else if (type == LinkedHashSet.class) {
+			out.write(LINKED_HASH_SET);
+			return writeCollection(out, (Collection<?>) o, depth);
+		} else if (type == HashMap.class) {
+			out.write(HASH_MAP);
+			return writeMap(out, (Map<?, ?>) o, depth);
+		} else if (type == LinkedHashMap.class) {
+			out.write(LINKED_HASH_MAP);
+			return writeMap(out, (Map<?, ?>) o, depth);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	private static boolean writeCollection(Output out, Collection<?> collection, int depth) {
+		out.writeVarLong(collection.size());
+		for (Object element : collection) {
+			if (!write(out, element, depth + 1)) return false;
+		}
+		return true;
+	}
+
+	private static boolean writeMap(Output out, Map<?, ?> map, int depth) {
+		out.writeVarLong(map.size());
+		for (Entry<?, ?> entry : map.entrySet()) {
+			if (!write(out, entry.getKey(), depth + 1) || !write(out, entry.getValue(), depth + 1)) return false;
+		}
+		return true;
+	}
+
+	private static Object read(ByteBuffer in) throws IOException {
+		byte tag = in.get();
+		switch (tag) {
+			case NULL:
+				return null;
+			case STRING:
+				return new String(readBytes(in), StandardCharsets.UTF_8);
+			case INTEGER:
+				return (int) readVarLong(in);
+			case LONG:
+				return readVarLong(in);
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case DOUBLE:
+				return Double.longBitsToDouble(in.getLong());
+			case FLOAT:
+				return Float.intBitsToFloat(in.getInt());
+			case SHORT:
+				return (short) readVarLong(in);
+			case BYTE:
+				return in.get();
+			case CHARACTER:
+				return (char) readVarLong(in);
+			case DATE:
+				return new Date(readVarLong(in));
+			case BYTE_ARRAY:
+				return readBytes(in);
+			case ARRAY_LIST:
+				return readCollection(in, new ArrayList<Object>());
+			case HASH_SET:
+				return readCollection(in, new HashSet<Object>());
+			case LINKED_HASH_SET:
+				return readCollection(in, new LinkedHashSet<Object>());
+			case HASH_MAP:
+				return readMap(in, new HashMap<Object, Object>());
+			case LINKED_HASH_MAP:
+				return readMap(in, new LinkedHashMap<Object, Object>());
+			default:
+				throw new StreamCorruptedException("Unknown type tag " + tag);
+		}
+	}
+
+	private static Collection<Object> readCollection(ByteBuffer in, Collection<Object> collection) throws IOException {
+		for (long size = readVarLong(in); size > 0; size--) {
+			collection.add(read(in));
+		}
+		return collection;
+	}
+
+	private static Map<Object, Object> readMap(ByteBuffer in, Map<Object, Object> map) throws IOException {
+		for (long size = readVarLong(in); size > 0; size--) {
+			map.put(read(in), read(in));
+		}
+		return map;
+	}
+
+	private static byte[] readBytes(ByteBuffer in) throws IOException {
+		long length = readVarLong(in);
+		if (length < 0 || length > in.remaining()) {
+			throw new StreamCorruptedException("Invalid length " + length);
+		}
+
+		byte[] bytes = new byte[(int) length];
+		in.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Zig-zag encoded variable length integer, 7 bits per byte.
+	 */
+	private static long readVarLong(ByteBuffer in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return (value >>> 1) ^ -(value & 1);
+			}
+		}
+		throw new StreamCorruptedException("Invalid variable length integer");
+	}
+
+	private static class Output extends ByteArrayOutputStream {
+
+		Output() {
+			super(64);
+		}
+
+		void writeVarLong(long value) {
+			long v = (value << 1) ^ (value >> 63);
+			while ((v & ~0x7FL) != 0) {
+				write((int) ((v & 0x7F) | 0x80));
+				v >>>= 7;
+			}
+			write((int) v);
+		}
+
+		void writeFixedLong(long value) {
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				write((int) (value >>> shift));
+			}
+		}
+
+		void writeFixedInt(int value) {
+			for (int shift = 24; shift >= 0; shift -= 8) {
+				write(value >>> shift);
+			}
+		}
+
+		void writeArray(byte[] bytes) {
+			writeVarLong(bytes.length);
+			write(bytes, 0, bytes.length);
+		}
+	}
+}